@@ -13,6 +13,7 @@ import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.Paint;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.Stroke;
 import java.awt.Toolkit;
@@ -21,52 +22,56 @@ import java.awt.datatransfer.ClipboardOwner;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
 import java.awt.event.MouseEvent;
-import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
-import sun.awt.image.ToolkitImage;
 
 public class AnnotationTool extends JFrame {
 
-    private class ShapeDef {
+    private DrawingCanvas canvas; // only touched through renderer once it starts
+    private RenderThread renderer;
+    private CanvasSurface surface;
+    private static Color clearPaint = DrawingCanvas.CLEAR_PAINT;
 
-        Shape shape;
-        Paint paint;
-        Stroke stroke;
+    private Shape border;
+    private Stroke borderStroke;
+    private Paint borderPaint;
 
-        ShapeDef(Stroke stroke, Paint paint, Shape shape) {
-            this.stroke = stroke;
-            this.paint = paint;
-            this.shape = shape;
-        }
-    }
-
-    private Image backingMain;
-    private Image backingScratch;
-    private static Color clearPaint = new Color(0, 0, 0, 0);
-
-    private Paint paint;
-    private Stroke stroke;
-
-    private ShapeDef blockOutShapeDef;
-    private ShapeDef border;
-
-    private Deque<ShapeDef> undoStack = new ArrayDeque<ShapeDef>();
-    private Deque<ShapeDef> redoStack = new ArrayDeque<ShapeDef>();
+    private FramePacer pacer;
+    private Rectangle dirty = new Rectangle(0, 0, -1, -1);
+    private boolean eraser; // presses erase whole strokes instead of drawing
+    private boolean pressed; // a stroke or erase is under way
+    private DrawingCanvas.Frame lastPainted; // for metrics only
 
     private Cursor defaultCursor;
     private Cursor pencilCursor;
 
-    private int saveImageIndex = 0;
+    // png, or svg or pdf to save the strokes rather than their pixels
+    private final String saveFormat = saveFormat();
+    private ImageSaver saver = new ImageSaver(new File("."), "image-", "." + saveFormat,
+            ImageSaver.DEFAULT_MAX_PENDING, Boolean.getBoolean("annotationtool.save.delta"));
+    private SessionJournal journal;
+    private Broadcaster broadcaster;
+    private BroadcastViewer viewer; // set when following someone else's broadcast
+    private InputTrace trace; // pointer events recorded, or null
+
+    /**
+     * The annotationtool.save.format property, or png if it names a
+     * format there is no writer for.
+     */
+    private static String saveFormat() {
+        String format = System.getProperty("annotationtool.save.format", "png");
+        if (!format.matches("png|svg|pdf")) {
+            System.err.println("Save format " + format + " not known, saving png");
+            format = "png";
+        }
+        return format;
+    }
 
     public AnnotationTool(int x, int y, int w, int h) {
 
@@ -88,13 +93,78 @@ public class AnnotationTool extends JFrame {
 
         setBounds(x - 5, y - 5, w + 10, h + 10);
 
-        Stroke blockOutStroke;
-        Path2D.Float blockOutShape;
-        blockOutStroke = new BasicStroke(h, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_BEVEL);
-        blockOutShape = new Path2D.Float();
-        blockOutShape.moveTo(0, h / 2);
-        blockOutShape.lineTo(w, h / 2);
-        blockOutShapeDef = new ShapeDef(blockOutStroke, clearPaint, blockOutShape);
+        canvas = new DrawingCanvas(w, h);
+        long predictMillis = Long.getLong("annotationtool.predict.millis", 0);
+        if (predictMillis > 0) {
+            canvas.setPredictor(new InkPredictor(predictMillis));
+        }
+        String tracePath = System.getProperty("annotationtool.trace");
+        if (tracePath != null) {
+            try {
+                trace = new InputTrace(new File(tracePath));
+            } catch (IOException ex) {
+                System.err.println("Trace " + tracePath + " not opened: " + ex.getMessage());
+            }
+        }
+        String journalPath = System.getProperty("annotationtool.journal");
+        if (journalPath != null) {
+            long start = System.nanoTime();
+            try {
+                journal = SessionJournal.open(new File(journalPath), canvas,
+                        Long.getLong("annotationtool.journal.syncMillis",
+                                SessionJournal.DEFAULT_SYNC_MILLIS));
+                System.out.printf("Journal %s: %d shapes restored in %d ms%n", journalPath,
+                        canvas.getHistorySize(), (System.nanoTime() - start) / 1000000);
+            } catch (IOException ex) {
+                System.err.println("Journal " + journalPath + " not opened: " + ex.getMessage());
+            }
+        }
+        int refreshRate = FramePacer.refreshRate(getGraphicsConfiguration().getDevice());
+        pacer = new FramePacer(refreshRate, new FramePacer.Frame() {
+            @Override
+            public void frame() {
+                repaintCanvas(dirty);
+                dirty.setBounds(0, 0, -1, -1);
+            }
+        });
+        renderer = new RenderThread(canvas, 1000 / refreshRate, new RenderThread.Listener() {
+            @Override
+            public void framePublished(final Rectangle damage) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        dirty.add(damage);
+                        pacer.request();
+                    }
+                });
+            }
+        });
+        renderer.start();
+        if (Metrics.ENABLED) {
+            Metrics.INSTANCE.start(renderer);
+        }
+        String view = System.getProperty("annotationtool.view");
+        Integer broadcastPort = Integer.getInteger("annotationtool.broadcast.port");
+        if (view != null) {
+            int colon = view.lastIndexOf(':');
+            try {
+                viewer = new BroadcastViewer(renderer, view.substring(0, colon),
+                        Integer.parseInt(view.substring(colon + 1)));
+                viewer.start();
+                System.out.println("Viewing broadcast from " + view);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Broadcast " + view + " not viewed: " + ex.getMessage());
+            }
+        } else if (broadcastPort != null) {
+            try {
+                broadcaster = new Broadcaster(renderer, broadcastPort,
+                        Broadcaster.DEFAULT_FRAME_MILLIS);
+                broadcaster.start();
+                System.out.println("Broadcasting on port " + broadcaster.getPort());
+            } catch (IOException ex) {
+                System.err.println("Broadcast not started: " + ex.getMessage());
+            }
+        }
 
         // make the window transparent
         setBackground(clearPaint);
@@ -106,8 +176,7 @@ public class AnnotationTool extends JFrame {
                 + AWTEvent.MOUSE_MOTION_EVENT_MASK);
         setVisible(true);
 
-        backingMain = createImage(w, h);
-        backingScratch = createImage(w, h);
+        surface = new CanvasSurface(getGraphicsConfiguration(), w, h);
 
         Path2D.Float borderShape = new Path2D.Float();
         borderShape.moveTo(0, 0);
@@ -115,24 +184,41 @@ public class AnnotationTool extends JFrame {
         borderShape.lineTo(w + 10, h + 10);
         borderShape.lineTo(0, h + 10);
         borderShape.closePath();
-        border = new ShapeDef(
-                new BasicStroke(10, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER),
-                new Color(255, 128, 0, 255),
-                borderShape);
+        border = borderShape;
+        borderStroke = new BasicStroke(10, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);
+        borderPaint = new Color(255, 128, 0, 255);
     }
 
-    public void setPaint(Paint paint) {
-        this.paint = paint;
+    public void setPaint(final Paint paint) {
+        eraser = false;
+        renderer.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.setPaint(paint);
+            }
+        });
+    }
+
+    public void setEraser(boolean eraser) {
+        this.eraser = eraser;
     }
 
-    public void setStroke(Stroke stroke) {
-        this.stroke = stroke;
+    public void setStroke(final Stroke stroke) {
+        renderer.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.setStroke(stroke);
+            }
+        });
     }
 
-    public void doClear(Paint paint) {
-        blockOutShapeDef.paint = paint;
-        commitShape(blockOutShapeDef);
-        repaint();
+    public void doClear(final Paint paint) {
+        edit(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.clear(paint);
+            }
+        });
     }
 
     public void doClear() {
@@ -140,9 +226,12 @@ public class AnnotationTool extends JFrame {
     }
 
     public void clearHistory() {
-        doClear();
-        undoStack.clear();
-        redoStack.clear();
+        edit(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.clearHistory();
+            }
+        });
     }
 
     final ClipboardOwner clipboardOwner = new ClipboardOwner() {
@@ -151,122 +240,252 @@ public class AnnotationTool extends JFrame {
         }
     };
 
+    final ImageSaver.Callback saveCallback = new ImageSaver.Callback() {
+        @Override
+        public void done(final File file, IOException failure) {
+            if (failure != null) {
+                System.err.println("Save of " + file + " failed: " + failure.getMessage());
+                return;
+            }
+            System.out.println("Saved " + file);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    saved(file);
+                }
+            });
+        }
+    };
+
+    /**
+     * Hands the drawing as last shown to the background saver; the pen
+     * stays live while the image is encoded and written, and its tag goes
+     * on the clipboard once it is. Vector formats take the strokes from
+     * the history, on the render thread.
+     */
     public void doSave() {
-        // find filename for use
-        File outFile;
-        String fname;
-        do {
-            fname = String.format("image-%06d.png", saveImageIndex++);
-            System.out.println("Trying " + fname);
-            outFile = new File(fname);
-        } while (outFile.exists());
-
-        String imageTag = "<img src='" + fname +"'>";
+        if (saveFormat.equals("png")) {
+            if (!saver.save(renderer.getFrame().getImage(), saveCallback)) {
+                refused();
+            }
+            return;
+        }
+        renderer.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                if (!saver.save(canvas.vectorDrawing(), saveCallback)) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            refused();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a change to the drawing, unless it is following a broadcast,
+     * which is the only thing that may change it then.
+     */
+    private void edit(RenderThread.Command command) {
+        if (viewer == null) {
+            renderer.post(command);
+        }
+    }
+
+    private void refused() {
+        System.err.println("Save skipped, earlier saves are still being written");
+        getToolkit().beep();
+    }
+
+    /**
+     * Puts an image tag for the file saved on the clipboard.
+     */
+    private void saved(File outFile) {
+        String imageTag = "<img src='" + outFile.getName() + "'>";
         Clipboard clip = this.getToolkit().getSystemClipboard();
         clip.setContents(new StringSelection(imageTag), clipboardOwner);
         System.out.println(imageTag);
-        
+    }
+
+    /**
+     * Gives saves still in progress a few seconds to finish, and gets the
+     * journal onto disk.
+     */
+    public void shutdown() {
+        if (viewer != null) {
+            viewer.close();
+        }
+        if (broadcaster != null) {
+            broadcaster.close();
+            System.out.printf("Broadcast: %.0f bytes per stroke, record to viewer ack us %s%n",
+                    broadcaster.getBytesPerStroke(), broadcaster.getLatency());
+        }
         try {
-            BufferedImage outImg = null;
-            if (backingMain instanceof BufferedImage) {
-                outImg = (BufferedImage) backingMain;
-            } else if (backingMain instanceof ToolkitImage) {
-                outImg = ((ToolkitImage) backingMain).getBufferedImage();
-            } else {
-                System.err.println("Hmm, not one of those two...");
+            renderer.shutdown(10, TimeUnit.SECONDS);
+            if (Boolean.getBoolean("annotationtool.render.latency")) {
+                System.out.println("Render: input to frame us " + renderer.getLatency());
+            }
+            saver.shutdown(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException ex) {
+                System.err.println("Trace not closed cleanly: " + ex.getMessage());
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                System.err.println("Journal not closed cleanly: " + ex.getMessage());
             }
-
-            ImageIO.write(outImg, "png", outFile);
-        } catch (IOException ex) {
-            System.err.println("Save failed: " + ex.getMessage());
         }
     }
 
     @Override
     public void paint(Graphics graphics) {
-        // Blank out the scratch image
-        Graphics2D gScratch = (Graphics2D) backingScratch.getGraphics();
-        gScratch.setComposite(AlphaComposite.Src);
-        gScratch.setBackground(clearPaint);
-        gScratch.clearRect(0, 0, this.getBounds().width, this.getBounds().height);
-        gScratch.drawImage(backingMain, 0, 0, null);
-
-        // if there is a "shape in progress" draw it on the scratch image
-        if (p2d != null) {
-            gScratch.setPaint(paint);
-            gScratch.setStroke(stroke);
-            gScratch.draw(p2d);
-        }
-
         Graphics2D g = (Graphics2D) graphics;
-        g.setComposite(AlphaComposite.Src);
-        AffineTransform trans = g.getTransform();
-        g.translate(5, 5);
-        g.drawImage(backingScratch, 0, 0, null);
-        g.setTransform(trans);
-        g.setPaint(border.paint);
-        g.setStroke(border.stroke);
-        g.draw(border.shape);
-    }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
 
-    private Path2D.Float p2d; // shape in progress...
+        // Only the part of the canvas inside the clip needs rebuilding
+        Rectangle area = new Rectangle(clip.x - 5, clip.y - 5, clip.width, clip.height)
+                .intersection(canvasBounds());
+        if (!area.isEmpty()) {
+            long start = Metrics.ENABLED ? System.nanoTime() : 0;
+            DrawingCanvas.Frame frame = renderer.getFrame();
+            surface.setGraphicsConfiguration(getGraphicsConfiguration());
+            surface.show(g, frame, area, 5, 5);
+            if (Metrics.ENABLED) {
+                long now = System.nanoTime();
+                Metrics.INSTANCE.painted(area.width * area.height, now - start);
+                if (frame != lastPainted) {
+                    long input = renderer.getInputNanos(frame);
+                    if (input != 0) {
+                        Metrics.INSTANCE.inputPainted(now - input);
+                    }
+                    lastPainted = frame;
+                }
+            }
+        }
 
-    public void undo() {
-        if (undoStack.size() > 0) {
-            ShapeDef sd = undoStack.pop();
-            redoStack.push(sd);
-            paintFromUndoStack();
+        // the border only needs drawing if the clip reaches outside the canvas
+        Rectangle inner = canvasBounds();
+        inner.translate(5, 5);
+        if (!inner.contains(clip)) {
+            g.setComposite(AlphaComposite.Src);
+            g.setPaint(borderPaint);
+            g.setStroke(borderStroke);
+            g.draw(border);
         }
     }
 
-    public void redo() {
-        if (redoStack.size() > 0) {
-            ShapeDef sd = redoStack.pop();
-            undoStack.push(sd);
-            paintFromUndoStack();
-        }
+    private Rectangle canvasBounds() {
+        return canvas.getBounds();
     }
 
-    private void paintFromUndoStack() {
-        Graphics2D g = (Graphics2D) backingMain.getGraphics();
-        g.setBackground(clearPaint);
-        g.setComposite(AlphaComposite.Src);
-        g.clearRect(0, 0, this.getBounds().width, this.getBounds().height);
-        Iterator<ShapeDef> sdi = undoStack.descendingIterator();
-        while (sdi.hasNext()) {
-            ShapeDef s = sdi.next();
-            g.setPaint(s.paint);
-            g.setStroke(s.stroke);
-            g.draw(s.shape);
+    /**
+     * Schedules a repaint of the given canvas-space rectangle, which is offset
+     * by the border in window space.
+     */
+    private void repaintCanvas(Rectangle r) {
+        if (r != null && !r.isEmpty()) {
+            repaint(r.x + 5, r.y + 5, r.width, r.height);
         }
-        repaint();
     }
 
-    private void commitShape(ShapeDef s) {
-        undoStack.push(s);
-        Graphics2D g = (Graphics2D) backingMain.getGraphics();
-        g.setComposite(AlphaComposite.Src);
-        g.setPaint(s.paint);
-        g.setStroke(s.stroke);
-        g.draw(s.shape);
-        p2d = null;
+    public void undo() {
+        edit(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.undo();
+            }
+        });
+    }
+
+    public void redo() {
+        edit(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.redo();
+            }
+        });
     }
 
     @Override
     protected void processEvent(AWTEvent evt) {
         super.processEvent(evt);
         if (evt instanceof MouseEvent) {
+            // only presses, drags and releases change pixels; each is queued
+            // for the render thread, which draws whatever has arrived by the
+            // time it next gets round to a frame
             MouseEvent me = (MouseEvent) evt;
+            final float x = me.getX(), y = me.getY();
+            final long when = me.getWhen();
+            if (trace != null && viewer == null) {
+                record(me.getID(), x, y, when);
+            }
             if (me.getID() == MouseEvent.MOUSE_PRESSED) {
-                p2d = new Path2D.Float();
-                p2d.moveTo(me.getX(), me.getY());
-            } else if (p2d != null && me.getID() == MouseEvent.MOUSE_DRAGGED) {
-                p2d.lineTo(me.getX(), me.getY());
-            } else if (p2d != null && me.getID() == MouseEvent.MOUSE_RELEASED) {
-                ShapeDef sd = new ShapeDef(stroke, paint, p2d);
-                commitShape(sd);
+                pressed = true;
+                final boolean erase = eraser;
+                edit(new RenderThread.Command() {
+                    @Override
+                    public void run(DrawingCanvas canvas) {
+                        if (erase) {
+                            canvas.beginErase(x, y);
+                        } else {
+                            canvas.beginStroke(x, y, when);
+                        }
+                    }
+                });
+            } else if (pressed && me.getID() == MouseEvent.MOUSE_DRAGGED) {
+                edit(new RenderThread.Command() {
+                    @Override
+                    public void run(DrawingCanvas canvas) {
+                        if (canvas.isErasing()) {
+                            canvas.extendErase(x, y);
+                        } else {
+                            canvas.extendStroke(x, y, when);
+                        }
+                    }
+                });
+            } else if (pressed && me.getID() == MouseEvent.MOUSE_RELEASED) {
+                pressed = false;
+                edit(new RenderThread.Command() {
+                    @Override
+                    public void run(DrawingCanvas canvas) {
+                        canvas.endStroke();
+                        canvas.endErase();
+                    }
+                });
             }
-            repaint();
+        }
+    }
+
+    /**
+     * Writes a press, drag or release to the input trace, which is given
+     * up on the first failure.
+     */
+    private void record(int id, float x, float y, long when) {
+        try {
+            if (id == MouseEvent.MOUSE_PRESSED) {
+                trace.press(x, y, when);
+            } else if (pressed && id == MouseEvent.MOUSE_DRAGGED) {
+                trace.drag(x, y, when);
+            } else if (pressed && id == MouseEvent.MOUSE_RELEASED) {
+                trace.release(x, y, when);
+            }
+        } catch (IOException ex) {
+            System.err.println("Trace stopped: " + ex.getMessage());
+            trace = null;
         }
     }
 
@@ -305,6 +524,9 @@ public class AnnotationTool extends JFrame {
                     controllerBox.setBounds(x + w + 10, y, 0, 0);
                     controllerBox.pack();
                     controllerBox.setVisible(true);
+                } else {
+                    System.err.println("Translucent windows are not supported here; "
+                            + "annotationtool.BatchRenderer renders journals without one");
                 }
             }
         });
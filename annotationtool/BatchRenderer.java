@@ -0,0 +1,192 @@
+package annotationtool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders recorded sessions to images without a display. Each journal
+ * named on the command line is replayed into a canvas of its own, just as
+ * the tool restores one on startup, and what it shows is written into
+ * the output directory as PNG, SVG or PDF. Run with
+ * <pre>
+ * java -Djava.awt.headless=true annotationtool.BatchRenderer
+ *     [-size WxH] [-format png|svg|pdf] [-threads N] [-memory MB] [-out dir]
+ *     session.journal...
+ * </pre>
+ * Sessions are rendered a worker thread each, but only as many at a time
+ * as the memory budget allows for their canvases and histories, so a long
+ * list of large frames never holds more than the budget between them.
+ * Each session is replayed on its worker alone, so -threads bounds the
+ * processors used, and without keyframes or ink masks, which only speed up
+ * undo.
+ */
+public class BatchRenderer {
+
+    private final int width;
+    private final int height;
+    private final String format;
+    private final File outDir;
+    private final ExecutorService workers;
+    private final Semaphore memory; // kilobytes free in the budget
+    private final int budget;
+    private final PngEncoder encoder = new PngEncoder(
+            Integer.getInteger("annotationtool.png.level", PngEncoder.DEFAULT_LEVEL), null);
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * A renderer writing format files into outDir from canvases w by h,
+     * with the given number of worker threads, keeping what they hold
+     * under memoryBytes.
+     */
+    public BatchRenderer(int w, int h, String format, File outDir, int threads,
+            long memoryBytes) {
+        this.width = w;
+        this.height = h;
+        this.format = format;
+        this.outDir = outDir;
+        budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBytes / 1024));
+        memory = new Semaphore(budget);
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "batch-render");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a session to be rendered, first waiting until the memory its
+     * canvas and history take is free.
+     */
+    public void submit(final File journal) throws InterruptedException {
+        // the history takes about what the journal does; the main image and
+        // the two layers 4 bytes a pixel each, with no keyframes or masks
+        final int cost = (int) Math.min(budget,
+                (3 * 4L * width * height + journal.length()) / 1024 + 1);
+        memory.acquire(cost);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    render(journal);
+                    rendered.incrementAndGet();
+                } catch (IOException | RuntimeException ex) {
+                    failed.incrementAndGet();
+                    System.err.println(journal + " not rendered: " + ex);
+                } finally {
+                    memory.release(cost);
+                }
+            }
+        });
+    }
+
+    private void render(File journal) throws IOException {
+        // the workers already keep the processors busy, so replay stays on
+        // each; it runs once from the start, so keyframes and masks are no use
+        DrawingCanvas canvas = new DrawingCanvas(width, height, 1, 0, 0);
+        if (!SessionJournal.replay(journal, canvas)) {
+            throw new IOException("not a session journal");
+        }
+        String name = journal.getName();
+        int dot = name.lastIndexOf('.');
+        File file = new File(outDir, (dot > 0 ? name.substring(0, dot) : name) + "." + format);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            if (format.equals("png")) {
+                encoder.write(canvas.frame().getImage(), out);
+            } else if (format.equals("pdf")) {
+                canvas.vectorDrawing().writePdf(out);
+            } else {
+                canvas.vectorDrawing().writeSvg(out);
+            }
+        } finally {
+            out.close();
+        }
+        bytesWritten.addAndGet(file.length());
+    }
+
+    /**
+     * Waits for everything submitted to be written, at most the given time.
+     */
+    public void finish(long timeout, TimeUnit unit) throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(timeout, unit);
+    }
+
+    public int getRendered() {
+        return rendered.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int w = 1280, h = 720;
+        String format = "png";
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memory = Runtime.getRuntime().maxMemory() / 2;
+        File outDir = new File(".");
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                String value = args[i + 1];
+                if (args[i].equals("-size")) {
+                    int x = value.indexOf('x');
+                    w = Integer.parseInt(value.substring(0, x));
+                    h = Integer.parseInt(value.substring(x + 1));
+                } else if (args[i].equals("-format") && value.matches("png|svg|pdf")) {
+                    format = value;
+                } else if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (args[i].equals("-memory")) {
+                    memory = Long.parseLong(value) << 20;
+                } else if (args[i].equals("-out")) {
+                    outDir = new File(value);
+                } else {
+                    throw new IllegalArgumentException(args[i] + " " + value);
+                }
+            }
+        } catch (RuntimeException ex) {
+            i = args.length;
+        }
+        if (i == args.length) {
+            System.err.println("Usage: java -Djava.awt.headless=true annotationtool.BatchRenderer"
+                    + " [-size WxH] [-format png|svg|pdf] [-threads N] [-memory MB]"
+                    + " [-out dir] session.journal...");
+            System.exit(2);
+        }
+        outDir.mkdirs();
+
+        BatchRenderer renderer = new BatchRenderer(w, h, format, outDir, threads, memory);
+        long start = System.nanoTime();
+        for (; i < args.length; i++) {
+            renderer.submit(new File(args[i]));
+        }
+        renderer.finish(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames in %.1f s, %.1f frames/s, %.1f MB written%s%n",
+                renderer.getRendered(), seconds, renderer.getRendered() / seconds,
+                renderer.getBytesWritten() / 1e6,
+                renderer.getFailed() == 0 ? "" : ", " + renderer.getFailed() + " failed");
+        System.exit(renderer.getFailed() == 0 ? 0 : 1);
+    }
+}
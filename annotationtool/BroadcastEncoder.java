@@ -0,0 +1,223 @@
+package annotationtool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Turns what happens to a canvas into the records a Broadcaster sends. The
+ * records are those of a SessionJournal with the numbers written as
+ * varints and the points packed as StrokeStore packs them, plus records
+ * for the points of the stroke in progress and for bracketing a snapshot
+ * of the history. Points arriving between two records, or before a batch
+ * is taken, go out together as one record.
+ * <p>
+ * Records are added on the canvas's thread and taken in batches from
+ * another, so both only happen while holding the encoder's lock.
+ */
+class BroadcastEncoder implements DrawingCanvas.HistoryListener {
+
+    static final byte BEGIN = 8; // style, one packed point
+    static final byte POINTS = 9; // count, packed points
+    static final byte RESTORE = 10; // a snapshot follows...
+    static final byte RESTORED = 11; // ...and is complete
+
+    /**
+     * Records taken together, and when the oldest of them was added, in
+     * System.nanoTime terms, or 0 for a snapshot.
+     */
+    static class Batch {
+
+        final byte[] bytes;
+        final long nanos;
+
+        Batch(byte[] bytes, long nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final Set<Integer> stylesWritten = new HashSet<Integer>();
+    private StrokeStore store; // where the styles written came from
+    private float[] points = new float[64]; // of the stroke in progress, not yet written
+    private int pointCount;
+    private long firstNanos; // when the oldest record not yet taken was added
+    private long strokes; // committed, excluding clears
+
+    @Override
+    public synchronized void shape(ShapeDef sd, StrokeStore store) {
+        writeStyle(sd.style, store);
+        if (sd.barrier) {
+            record(1 + 5);
+            buffer.put(SessionJournal.CLEAR);
+            putVarint(buffer, sd.style);
+            return;
+        }
+        byte[] packed = StrokeStore.pack(store.chunk(sd), sd.offset, 2 * sd.count);
+        record(1 + 5 + 1 + 5 + 5 + packed.length);
+        buffer.put(SessionJournal.STROKE);
+        putVarint(buffer, sd.style);
+        buffer.put((byte) (sd.smooth ? 1 : 0));
+        putVarint(buffer, sd.count);
+        putVarint(buffer, packed.length);
+        buffer.put(packed);
+        strokes++;
+    }
+
+    @Override
+    public synchronized void erase(int[] positions) {
+        record(1 + 5 + 5 * positions.length);
+        buffer.put(SessionJournal.ERASE);
+        putVarint(buffer, positions.length);
+        for (int p : positions) {
+            putVarint(buffer, p);
+        }
+    }
+
+    @Override
+    public synchronized void undo() {
+        record(1);
+        buffer.put(SessionJournal.UNDO);
+    }
+
+    @Override
+    public synchronized void redo() {
+        record(1);
+        buffer.put(SessionJournal.REDO);
+    }
+
+    @Override
+    public synchronized void clearHistory() {
+        record(1);
+        buffer.put(SessionJournal.CLEAR_HISTORY);
+    }
+
+    @Override
+    public synchronized void strokeBegun(int style, StrokeStore store, float x, float y) {
+        writeStyle(style, store);
+        byte[] packed = StrokeStore.pack(new float[]{x, y}, 0, 2);
+        record(1 + 5 + packed.length);
+        buffer.put(BEGIN);
+        putVarint(buffer, style);
+        buffer.put(packed);
+    }
+
+    @Override
+    public synchronized void strokeExtended(float x, float y) {
+        if (pointCount == 0 && buffer.position() == 0) {
+            firstNanos = System.nanoTime();
+        }
+        if (points.length < 2 * pointCount + 2) {
+            points = Arrays.copyOf(points, 2 * points.length);
+        }
+        points[2 * pointCount] = x;
+        points[2 * pointCount + 1] = y;
+        pointCount++;
+    }
+
+    /**
+     * Marks the start of a snapshot, and writes the styles from, which the
+     * batches sent after the snapshot may use without writing them again.
+     */
+    synchronized void beginSnapshot(BroadcastEncoder from) {
+        record(1);
+        buffer.put(RESTORE);
+        synchronized (from) {
+            for (int style : from.stylesWritten) {
+                writeStyle(style, from.store);
+            }
+        }
+    }
+
+    synchronized void endSnapshot() {
+        record(1);
+        buffer.put(RESTORED);
+    }
+
+    /**
+     * Strokes committed so far.
+     */
+    synchronized long getStrokes() {
+        return strokes;
+    }
+
+    /**
+     * The records added since the last batch was taken, or null if none.
+     */
+    synchronized Batch take() {
+        flushPoints();
+        if (buffer.position() == 0) {
+            return null;
+        }
+        Batch batch = new Batch(Arrays.copyOf(buffer.array(), buffer.position()), firstNanos);
+        buffer.clear();
+        return batch;
+    }
+
+    private void writeStyle(int style, StrokeStore store) {
+        if (!stylesWritten.add(style)) {
+            return;
+        }
+        this.store = store;
+        record(SessionJournal.styleBytes(style, store));
+        SessionJournal.putStyle(buffer, style, store);
+    }
+
+    /**
+     * Makes room for a record of at most the given size, after the live
+     * points it follows.
+     */
+    private void record(int bytes) {
+        flushPoints();
+        if (buffer.position() == 0) {
+            firstNanos = System.nanoTime();
+        }
+        ensure(bytes);
+    }
+
+    private void flushPoints() {
+        if (pointCount == 0) {
+            return;
+        }
+        byte[] packed = StrokeStore.pack(points, 0, 2 * pointCount);
+        ensure(1 + 5 + packed.length);
+        buffer.put(POINTS);
+        putVarint(buffer, pointCount);
+        buffer.put(packed);
+        pointCount = 0;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(buffer.position() + bytes, 2 * buffer.capacity()));
+            buffer.flip();
+            buffer = bigger.put(buffer);
+        }
+    }
+
+    /**
+     * Writes n, which must not be negative, seven bits a byte, low bits
+     * first, the top bit marking that more follow.
+     */
+    static void putVarint(ByteBuffer out, int n) {
+        while ((n & ~0x7f) != 0) {
+            out.put((byte) (n | 0x80));
+            n >>>= 7;
+        }
+        out.put((byte) n);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+    }
+}
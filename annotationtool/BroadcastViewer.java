@@ -0,0 +1,161 @@
+package annotationtool;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Follows a Broadcaster: reads each batch it sends and applies it to the
+ * canvas a render thread owns, then acknowledges it. Nothing else should
+ * change that canvas's history, or erases received later may no longer
+ * find the strokes they were meant for.
+ */
+public class BroadcastViewer {
+
+    private final RenderThread renderer;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Thread reader;
+    private volatile boolean closed;
+
+    // render thread only
+    private final Map<Integer, Stroke> strokes = new HashMap<Integer, Stroke>();
+    private final Map<Integer, Paint> paints = new HashMap<Integer, Paint>();
+    private float[] points = new float[256];
+
+    public BroadcastViewer(RenderThread renderer, String host, int port) throws IOException {
+        this.renderer = renderer;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(socket.getOutputStream());
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "broadcast-view");
+        reader.setDaemon(true);
+    }
+
+    public void start() {
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                final byte[] batch = new byte[in.readInt()];
+                final long nanos = in.readLong();
+                in.readFully(batch);
+                renderer.post(new RenderThread.Command() {
+                    @Override
+                    public void run(DrawingCanvas canvas) {
+                        apply(batch, canvas);
+                        acknowledge(nanos);
+                    }
+                });
+            }
+        } catch (EOFException ex) {
+            System.err.println("Broadcast ended");
+        } catch (IOException ex) {
+            if (!closed) {
+                System.err.println("Broadcast lost: " + ex);
+            }
+        }
+        close();
+    }
+
+    private void apply(byte[] batch, DrawingCanvas canvas) {
+        ByteBuffer in = ByteBuffer.wrap(batch);
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            if (type == SessionJournal.STYLE) {
+                int id = in.getInt();
+                strokes.put(id, SessionJournal.readStroke(in));
+                paints.put(id, new Color(in.getInt(), true));
+            } else if (type == SessionJournal.STROKE) {
+                int style = BroadcastEncoder.getVarint(in);
+                boolean smooth = in.get() != 0;
+                int count = BroadcastEncoder.getVarint(in);
+                int length = BroadcastEncoder.getVarint(in);
+                unpack(in, count);
+                in.position(in.position() + length);
+                canvas.restoreShape(strokes.get(style), paints.get(style), points, count, smooth);
+            } else if (type == SessionJournal.CLEAR) {
+                canvas.clear(paints.get(BroadcastEncoder.getVarint(in)));
+            } else if (type == SessionJournal.UNDO) {
+                canvas.undo();
+            } else if (type == SessionJournal.REDO) {
+                canvas.redo();
+            } else if (type == SessionJournal.CLEAR_HISTORY) {
+                canvas.clearHistory();
+            } else if (type == SessionJournal.ERASE) {
+                int[] positions = new int[BroadcastEncoder.getVarint(in)];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = BroadcastEncoder.getVarint(in);
+                }
+                canvas.restoreErase(positions);
+            } else if (type == BroadcastEncoder.BEGIN) {
+                int style = BroadcastEncoder.getVarint(in);
+                in.position(unpack(in, 1));
+                canvas.setStroke(strokes.get(style));
+                canvas.setPaint(paints.get(style));
+                canvas.beginStroke(points[0], points[1]);
+            } else if (type == BroadcastEncoder.POINTS) {
+                int count = BroadcastEncoder.getVarint(in);
+                in.position(unpack(in, count));
+                for (int i = 0; i < count; i++) {
+                    canvas.extendStroke(points[2 * i], points[2 * i + 1]);
+                }
+            } else if (type == BroadcastEncoder.RESTORE) {
+                canvas.beginRestore();
+            } else if (type == BroadcastEncoder.RESTORED) {
+                canvas.endRestore();
+            } else {
+                System.err.println("Unknown broadcast record " + type);
+                close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Unpacks count points at the buffer's position into points, returning
+     * the position after them.
+     */
+    private int unpack(ByteBuffer in, int count) {
+        if (points.length < 2 * count) {
+            points = new float[Math.max(2 * count, 2 * points.length)];
+        }
+        return StrokeStore.unpack(in.array(), in.position(), points, 2 * count);
+    }
+
+    private void acknowledge(long nanos) {
+        try {
+            out.writeLong(nanos);
+            out.flush();
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package annotationtool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends what is drawn on a canvas to viewers connected over TCP, so others
+ * can follow the annotations live. Whatever the canvas does between two
+ * frames, the points of the stroke in progress as much as committed
+ * strokes, erases and undos, goes out as one batch of records every frame
+ * interval rather than a message per mouse event. Each viewer joining is
+ * first sent a snapshot of the history, taken on the render thread, so
+ * the batches that follow apply on top of it exactly.
+ * <p>
+ * Each viewer has a queue and a thread writing to it, so a slow one holds
+ * up nobody else; one falling more than MAX_BACKLOG batches behind is
+ * dropped. Viewers acknowledge each batch once they have applied it, and
+ * the time from the render thread recording the oldest record in a batch
+ * to its acknowledgement coming back is kept in a histogram, in
+ * microseconds.
+ */
+public class Broadcaster {
+
+    public static final long DEFAULT_FRAME_MILLIS = 16;
+    public static final int MAX_BACKLOG = 1000;
+
+    /**
+     * One viewer, with a thread writing it batches as they are queued and
+     * one reading back its acknowledgements.
+     */
+    private class Viewer {
+
+        final Socket socket;
+        final BlockingQueue<BroadcastEncoder.Batch> queue =
+                new LinkedBlockingQueue<BroadcastEncoder.Batch>();
+        final Thread writer;
+        final Thread reader;
+        long sent; // guarded by the broadcaster's lock
+        long acknowledged; // likewise
+
+        Viewer(Socket socket) {
+            this.socket = socket;
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "broadcast-write");
+            writer.setDaemon(true);
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "broadcast-read");
+            reader.setDaemon(true);
+        }
+
+        void send(BroadcastEncoder.Batch batch) {
+            if (queue.size() >= MAX_BACKLOG) {
+                System.err.println("Dropping viewer " + socket.getRemoteSocketAddress()
+                        + ", " + MAX_BACKLOG + " batches behind");
+                close();
+                return;
+            }
+            queue.add(batch);
+            sent++;
+        }
+
+        private void write() {
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    BroadcastEncoder.Batch batch = queue.take();
+                    out.writeInt(batch.bytes.length);
+                    out.writeLong(batch.nanos);
+                    out.write(batch.bytes);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+            } catch (InterruptedException ex) {
+                // closed
+            }
+        }
+
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    long nanos = in.readLong();
+                    if (nanos != 0) {
+                        latency.record((System.nanoTime() - nanos) / 1000);
+                    }
+                    synchronized (Broadcaster.this) {
+                        acknowledged++;
+                        Broadcaster.this.notifyAll();
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        void close() {
+            viewers.remove(this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing more to send it anyway
+            }
+            synchronized (Broadcaster.this) {
+                Broadcaster.this.notifyAll();
+            }
+        }
+    }
+
+    private final RenderThread renderer;
+    private final ServerSocket server;
+    private final long frameMillis;
+    private final BroadcastEncoder encoder = new BroadcastEncoder();
+    private final List<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+    private final Thread acceptor;
+    private final ScheduledExecutorService batcher;
+    private final Histogram latency = new Histogram();
+    private long bytes; // sent to each viewer after its snapshot, guarded by this
+    private volatile boolean closed;
+
+    /**
+     * A broadcaster of the canvas renderer owns, listening on port, or on
+     * any free port if it is 0, and sending a batch every frameMillis.
+     */
+    public Broadcaster(RenderThread renderer, int port, long frameMillis) throws IOException {
+        this.renderer = renderer;
+        this.frameMillis = frameMillis;
+        server = new ServerSocket(port);
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "broadcast-accept");
+        acceptor.setDaemon(true);
+        batcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "broadcast-batch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void start() {
+        renderer.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.addHistoryListener(encoder);
+            }
+        });
+        acceptor.start();
+        batcher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, frameMillis, frameMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException ex) {
+                if (!closed) {
+                    System.err.println("Broadcast stopped accepting viewers: " + ex);
+                }
+                return;
+            }
+            // the snapshot has to be taken between two records
+            renderer.post(new RenderThread.Command() {
+                @Override
+                public void run(DrawingCanvas canvas) {
+                    BroadcastEncoder snapshot = new BroadcastEncoder();
+                    snapshot.beginSnapshot(encoder);
+                    canvas.replayHistory(snapshot);
+                    snapshot.endSnapshot();
+                    join(new Viewer(socket), snapshot.take());
+                }
+            });
+        }
+    }
+
+    private synchronized void join(Viewer viewer, BroadcastEncoder.Batch snapshot) {
+        // whatever came before the snapshot is already in it
+        flush();
+        if (closed) {
+            viewer.close();
+            return;
+        }
+        viewers.add(viewer);
+        viewer.send(new BroadcastEncoder.Batch(snapshot.bytes, 0));
+        viewer.writer.start();
+        viewer.reader.start();
+    }
+
+    /**
+     * Queues the records gathered since the last batch to every viewer.
+     */
+    synchronized void flush() {
+        BroadcastEncoder.Batch batch = encoder.take();
+        if (batch == null) {
+            return;
+        }
+        bytes += 12 + batch.bytes.length;
+        for (Viewer v : viewers) {
+            v.send(batch);
+        }
+    }
+
+    /**
+     * Sends what has been recorded so far and waits at most the given time
+     * for every viewer to acknowledge everything sent to it, returning
+     * whether they did.
+     */
+    public synchronized boolean awaitAcknowledged(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        flush();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            boolean done = true;
+            for (Viewer v : viewers) {
+                done &= v.acknowledged >= v.sent;
+            }
+            long left = deadline - System.nanoTime();
+            if (done || left <= 0) {
+                return done;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    /**
+     * Microseconds from the render thread recording something to a viewer
+     * acknowledging it has applied it.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Bytes sent to a viewer joined from the start, frame headers
+     * included, per committed stroke.
+     */
+    public synchronized double getBytesPerStroke() {
+        long strokes = encoder.getStrokes();
+        return strokes == 0 ? 0 : (double) bytes / strokes;
+    }
+
+    /**
+     * Stops listening and disconnects every viewer.
+     */
+    public void close() {
+        closed = true;
+        batcher.shutdown();
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // not accepting any more either way
+        }
+        renderer.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                canvas.removeHistoryListener(encoder);
+            }
+        });
+        for (Viewer v : viewers) {
+            v.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package annotationtool;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+/**
+ * The image the window composites the canvas into before it is blitted on
+ * screen. Where the platform allows it this is a translucent VolatileImage,
+ * which stays in video memory so the blit is a device-to-device copy. Its
+ * contents may be lost at any time (display mode change, screen lock...),
+ * and are then rebuilt from the frame being shown, whose tiles are in
+ * system memory. Otherwise, including headless, it is a compatible
+ * BufferedImage.
+ */
+class CanvasSurface {
+
+    private final int width;
+    private final int height;
+    private final boolean accelerated;
+
+    private GraphicsConfiguration config;
+    private VolatileImage volatileImage;
+    private BufferedImage bufferedImage;
+
+    CanvasSurface(GraphicsConfiguration config, int width, int height) {
+        this.config = config;
+        this.width = width;
+        this.height = height;
+        this.accelerated = config != null && !GraphicsEnvironment.isHeadless()
+                && !"false".equals(System.getProperty("annotationtool.surface.accelerated"));
+    }
+
+    boolean isAccelerated() {
+        return accelerated;
+    }
+
+    /**
+     * Composes the area of the frame into the surface and draws it onto g
+     * with its top left corner at (x, y).
+     */
+    void show(Graphics2D g, DrawingCanvas.Frame frame, Rectangle area, int x, int y) {
+        if (!accelerated) {
+            if (bufferedImage == null) {
+                bufferedImage = config == null
+                        ? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB)
+                        : config.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+            }
+            compose(bufferedImage, frame, area);
+            blit(g, bufferedImage, area, x, y);
+            return;
+        }
+        do {
+            int status = volatileImage == null
+                    ? VolatileImage.IMAGE_INCOMPATIBLE : volatileImage.validate(config);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (volatileImage != null) {
+                    volatileImage.flush();
+                }
+                volatileImage = config.createCompatibleVolatileImage(width, height,
+                        Transparency.TRANSLUCENT);
+                status = VolatileImage.IMAGE_RESTORED;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED) {
+                // everything outside the area was lost as well
+                compose(volatileImage, frame, new Rectangle(0, 0, width, height));
+            } else {
+                compose(volatileImage, frame, area);
+            }
+            blit(g, volatileImage, area, x, y);
+        } while (volatileImage.contentsLost());
+    }
+
+    /**
+     * Follows the window to another screen; an accelerated surface is
+     * recreated for it on the next show.
+     */
+    void setGraphicsConfiguration(GraphicsConfiguration config) {
+        if (config != null) {
+            this.config = config;
+        }
+    }
+
+    /**
+     * Releases the video memory held by the surface, if any.
+     */
+    void flush() {
+        if (volatileImage != null) {
+            volatileImage.flush();
+            volatileImage = null;
+        }
+        bufferedImage = null;
+    }
+
+    private static void compose(Image target, DrawingCanvas.Frame frame, Rectangle area) {
+        Graphics2D g = (Graphics2D) target.getGraphics();
+        g.setClip(area);
+        frame.compose(g, area);
+        g.dispose();
+    }
+
+    private static void blit(Graphics2D g, Image source, Rectangle area, int x, int y) {
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(source,
+                x + area.x, y + area.y, x + area.x + area.width, y + area.y + area.height,
+                area.x, area.y, area.x + area.width, area.y + area.height, null);
+    }
+}
@@ -97,6 +97,15 @@ class ControllerBox extends JFrame {
         }
     }
 
+    private static final BasicStroke THIN_STROKE
+            = new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final BasicStroke MEDIUM_STROKE
+            = new BasicStroke(15, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final BasicStroke THICK_STROKE
+            = new BasicStroke(30, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final BasicStroke HUGE_STROKE
+            = new BasicStroke(70, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+
     private JRadioButton thinLine;
     private JRadioButton mediumLine;
     private JRadioButton thickLine;
@@ -136,14 +145,24 @@ class ControllerBox extends JFrame {
             gbcb.nextX();
             toolGroup.add(jrb);
         }
+
+        JRadioButton strokeEraser = new JRadioButton("Stroke Eraser");
+        strokeEraser.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                annotationTool.setEraser(true);
+            }
+        });
+        add(strokeEraser, gbcb.fullWidth().build());
+        toolGroup.add(strokeEraser);
+
         add(new JLabel("Pen Sizes"), gbcb.fullWidth().nextY().build());
 
         thinLine = new JRadioButton("Thin");
         thinLine.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                annotationTool.setStroke(
-                        new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                annotationTool.setStroke(THIN_STROKE);
             }
         });
         add(thinLine, gbcb.nextY().build());
@@ -155,8 +174,7 @@ class ControllerBox extends JFrame {
         mediumLine.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                annotationTool.setStroke(
-                        new BasicStroke(15, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                annotationTool.setStroke(MEDIUM_STROKE);
             }
         });
         add(mediumLine, gbcb.build());
@@ -166,8 +184,7 @@ class ControllerBox extends JFrame {
         thickLine.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                annotationTool.setStroke(
-                        new BasicStroke(30, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                annotationTool.setStroke(THICK_STROKE);
             }
         });
         add(thickLine, gbcb.build());
@@ -177,8 +194,7 @@ class ControllerBox extends JFrame {
         hugeLine.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                annotationTool.setStroke(
-                        new BasicStroke(70, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                annotationTool.setStroke(HUGE_STROKE);
             }
         });
         add(hugeLine, gbcb.build());
@@ -286,6 +302,7 @@ class ControllerBox extends JFrame {
                         ControllerBox.this, "Confirm quit?", "Confirm quit",
                         JOptionPane.YES_NO_OPTION)
                         == JOptionPane.YES_OPTION) {
+                    annotationTool.shutdown();
                     System.exit(0);
                 }
             }
@@ -298,6 +315,7 @@ class ControllerBox extends JFrame {
                         ControllerBox.this, "Confirm quit?", "Confirm quit",
                         JOptionPane.YES_NO_OPTION)
                         == JOptionPane.YES_OPTION) {
+                    annotationTool.shutdown();
                     System.exit(0);
                 }
             }
@@ -0,0 +1,1291 @@
+package annotationtool;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.Transparency;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The drawing model and renderer behind the annotation window: committed
+ * history, the stroke in progress, and the rasters they are drawn into.
+ * The rasters are TiledImages, so memory and drawing time follow the parts
+ * of the canvas that have ink on them rather than its size. Works entirely
+ * on BufferedImages so it runs with java.awt.headless=true. Not thread
+ * safe; callers drive it from a single thread (normally a RenderThread).
+ * <p>
+ * Committed strokes are drawn into two layers: translucent ink into the
+ * highlighter layer and opaque ink into the pen layer above it, each
+ * stroke replacing the ink of its own layer beneath it (AlphaComposite.Src)
+ * and ink with no alpha at all rubbing out both. The clears on the history
+ * give the background. Each layer replays only its own strokes, with
+ * keyframes of its own, and the main image is composited from background,
+ * highlighter and pen over just the areas that changed, once per frame.
+ */
+public class DrawingCanvas {
+
+    /**
+     * Told about every canvas-space rectangle whose pixels have changed.
+     */
+    public interface DamageListener {
+
+        void damaged(Rectangle area);
+    }
+
+    /**
+     * Told, on the canvas's thread, of every change to the history as it
+     * is made, and of the points of a stroke as they arrive, before it is
+     * committed. Positions count from 1 at the bottom of the undo stack.
+     */
+    interface HistoryListener {
+
+        /**
+         * A stroke or clear was committed.
+         */
+        void shape(ShapeDef sd, StrokeStore store);
+
+        /**
+         * The strokes at the given positions were erased.
+         */
+        void erase(int[] positions);
+
+        void undo();
+
+        void redo();
+
+        void clearHistory();
+
+        /**
+         * A stroke in the given style was started at (x, y).
+         */
+        void strokeBegun(int style, StrokeStore store, float x, float y);
+
+        void strokeExtended(float x, float y);
+    }
+
+    /**
+     * The canvas as compose would draw it at one moment. Its tiles are
+     * shared with the canvas copy-on-write, so it never changes and may be
+     * drawn from another thread while the canvas goes on drawing.
+     */
+    public static class Frame {
+
+        private final TiledImage main;
+        private final TiledImage live; // main with the stroke in progress, over liveBounds
+        private final Rectangle liveBounds; // of the live and predicted ink
+
+        Frame(TiledImage main, TiledImage live, Rectangle liveBounds) {
+            this.main = main;
+            this.live = live;
+            this.liveBounds = liveBounds;
+        }
+
+        /**
+         * The committed drawing, without the stroke in progress.
+         */
+        public TiledImage getImage() {
+            return main;
+        }
+
+        /**
+         * Draws the frame into the given canvas-space area of g, overwriting
+         * rather than blending.
+         */
+        public void compose(Graphics2D g, Rectangle area) {
+            main.paint(g, area);
+            if (live != null && liveBounds.intersects(area)) {
+                live.paint(g, area.intersection(liveBounds));
+            }
+        }
+    }
+
+    /**
+     * One of the rasters committed strokes are drawn into, and keyframes
+     * of its replays. Highlighter ink has a layer of its own beneath the
+     * pen's, so it blends with pen ink over it rather than replacing it, and
+     * undoing a stroke replays only the layer it was drawn on.
+     */
+    private class Layer {
+
+        final TiledImage image = new TiledImage(width, height);
+        final KeyframeCache keyframes;
+        final boolean translucent; // holds the translucent ink, not the opaque
+        TiledImage live; // image with the stroke in progress drawn in, if it goes here
+        TiledImage beforePrediction; // live as it was before the predicted tail
+
+        Layer(boolean translucent, long keyframeMemory) {
+            this.translucent = translucent;
+            keyframes = new KeyframeCache(keyframeMemory,
+                    Integer.getInteger("annotationtool.keyframes.interval",
+                            KeyframeCache.DEFAULT_INTERVAL),
+                    Long.getLong("annotationtool.keyframes.replayMillis",
+                            KeyframeCache.DEFAULT_REPLAY_MILLIS),
+                    KeyframeCache.EvictionPolicy.valueOf(System.getProperty(
+                            "annotationtool.keyframes.eviction", "LEAST_RECENTLY_USED")));
+        }
+
+        /**
+         * The layer as it would be with the stroke in progress committed.
+         */
+        TiledImage shown() {
+            return live != null ? live : image;
+        }
+
+        /**
+         * Whether ink of paint is drawn on this layer: opaque ink on the
+         * pen layer, translucent on the highlighter layer, and ink with no
+         * alpha at all, which only rubs out, on both.
+         */
+        boolean holds(Paint paint) {
+            if (paint instanceof Color && ((Color) paint).getAlpha() == 0) {
+                return true;
+            }
+            return translucent == (paint.getTransparency() != Transparency.OPAQUE);
+        }
+    }
+
+    public static final Color CLEAR_PAINT = new Color(0, 0, 0, 0);
+
+    // how far from the pointer the stroke eraser reaches
+    public static final float ERASER_RADIUS = 8;
+
+    private final int width;
+    private final int height;
+
+    private final TiledImage backingMain; // the layers composited
+    private final TiledImage backingLive; // the layers with the live ink, over liveBounds
+    private final Layer highlighter;
+    private final Layer pen;
+    private final Layer[] layers;
+    private Paint background = CLEAR_PAINT; // of the topmost clear
+    private final Rectangle stale = new Rectangle(0, 0, -1, -1); // main behind the layers
+
+    private Paint paint = Color.RED;
+    private Stroke stroke = new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+
+    private final StrokeStore store = new StrokeStore(
+            Long.getLong("annotationtool.history.memory", StrokeStore.DEFAULT_MEMORY_CEILING),
+            Long.getLong("annotationtool.history.packedMemory",
+                    StrokeStore.DEFAULT_PACKED_CEILING));
+
+    private Deque<ShapeDef> undoStack = new ArrayDeque<ShapeDef>();
+    private Deque<ShapeDef> redoStack = new ArrayDeque<ShapeDef>();
+
+    private final InkMaskCache masks;
+
+    private final StrokeSimplifier capture = new StrokeSimplifier(
+            Float.parseFloat(System.getProperty("annotationtool.stroke.tolerance",
+                    String.valueOf(StrokeSimplifier.DEFAULT_TOLERANCE))),
+            Boolean.getBoolean("annotationtool.stroke.smooth"));
+    private boolean stroking; // shape in progress...
+    private float prevX, prevY, lastX, lastY;
+    private Rectangle liveBounds; // area of backingLive holding ink
+    private Path2D.Float livePath; // every point of the stroke in progress
+    private InkPredictor predictor; // to draw ink ahead of the pointer, or null
+    private final float[] predicted = new float[6];
+    private Rectangle predictedBounds = new Rectangle(0, 0, -1, -1); // guessed ink in live
+
+    private final StrokeIndex index; // the strokes that can be seen
+    private boolean erasing; // stroke eraser gesture in progress...
+    private List<ShapeDef> erasedNow; // ...and the strokes it has hidden so far
+    private float eraseX, eraseY;
+
+    private DamageListener damageListener;
+    private final List<HistoryListener> historyListeners = new ArrayList<HistoryListener>();
+    private boolean restoring; // rebuilding history only, drawn at the end
+
+    // replay of an area spanning several tiles runs one task per tile
+    private final int parallelism;
+    // shared by every canvas, so many canvases do not mean many idle threads
+    private static final Map<Integer, ForkJoinPool> replayPools =
+            new HashMap<Integer, ForkJoinPool>();
+
+    public DrawingCanvas(int w, int h) {
+        this(w, h, Integer.getInteger("annotationtool.replay.parallelism",
+                Runtime.getRuntime().availableProcessors()),
+                Long.getLong("annotationtool.keyframes.memory",
+                        KeyframeCache.DEFAULT_MEMORY_CEILING),
+                Long.getLong("annotationtool.masks.memory",
+                        InkMaskCache.DEFAULT_MEMORY_CEILING));
+    }
+
+    /**
+     * A canvas whose replays run on at most parallelism threads; 1 keeps
+     * them on the caller's, for callers with threads of their own to fill.
+     * Keyframes are held under keyframeMemory bytes and ink masks under
+     * maskMemory; 0 keeps none.
+     */
+    DrawingCanvas(int w, int h, int parallelism, long keyframeMemory, long maskMemory) {
+        width = w;
+        height = h;
+        this.parallelism = parallelism;
+        backingMain = new TiledImage(w, h);
+        backingLive = new TiledImage(w, h);
+        masks = new InkMaskCache(maskMemory);
+        // the layers share the memory the one image used to have
+        highlighter = new Layer(true, keyframeMemory / 2);
+        pen = new Layer(false, keyframeMemory / 2);
+        layers = new Layer[]{highlighter, pen};
+        index = new StrokeIndex(w, h);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setDamageListener(DamageListener damageListener) {
+        this.damageListener = damageListener;
+    }
+
+    /**
+     * Tells listener of every later change to the history.
+     */
+    void addHistoryListener(HistoryListener listener) {
+        historyListeners.add(listener);
+    }
+
+    void removeHistoryListener(HistoryListener listener) {
+        historyListeners.remove(listener);
+    }
+
+    /**
+     * Tells listener how to build the history as it stands from nothing:
+     * a clear of the history, every entry on the undo stack from the
+     * bottom, then those on the redo stack in the order redo would bring
+     * them back, and enough undos to put those back on the redo stack. An
+     * erase in progress and a stroke in progress are left out.
+     */
+    void replayHistory(HistoryListener listener) {
+        List<ShapeDef> entries = new ArrayList<ShapeDef>();
+        for (Iterator<ShapeDef> it = undoStack.descendingIterator(); it.hasNext();) {
+            entries.add(it.next());
+        }
+        entries.addAll(redoStack);
+        Map<ShapeDef, Integer> positions = new HashMap<ShapeDef, Integer>();
+        listener.clearHistory();
+        for (ShapeDef s : entries) {
+            positions.put(s, positions.size() + 1);
+            if (s.erases == null) {
+                listener.shape(s, store);
+                continue;
+            }
+            int[] targets = new int[s.erases.length];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = positions.get(s.erases[i]);
+            }
+            listener.erase(targets);
+        }
+        for (int i = 0; i < redoStack.size(); i++) {
+            listener.undo();
+        }
+    }
+
+    public void setPaint(Paint paint) {
+        this.paint = paint;
+    }
+
+    public void setStroke(Stroke stroke) {
+        this.stroke = stroke;
+    }
+
+    /**
+     * Has the strokes begun and extended with event times drawn a little
+     * past their last point, where predictor expects the pointer to go
+     * next, or not if it is null.
+     */
+    public void setPredictor(InkPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * A full-size copy of the committed drawing.
+     */
+    public BufferedImage getImage() {
+        composite();
+        return backingMain.toBufferedImage();
+    }
+
+    /**
+     * An image of the committed drawing as it is now, which later drawing
+     * will not change. Taking one is cheap: the tiles are shared with the
+     * caller and each is only copied when the canvas next draws into it.
+     */
+    public TiledImage snapshot() {
+        composite();
+        return backingMain.snapshot();
+    }
+
+    /**
+     * The strokes that can be seen, from the topmost clear up, as a
+     * drawing to export in vector form. The points are shared with the
+     * history, not copied, and are never changed once committed.
+     */
+    public VectorDrawing vectorDrawing() {
+        Deque<ShapeDef> visible = new ArrayDeque<ShapeDef>();
+        for (ShapeDef s : undoStack) {
+            if (s.barrier) {
+                break;
+            }
+            if (s.erases == null && s.erasures == 0) {
+                visible.push(s);
+            }
+        }
+        // each layer's strokes in turn, from the bottom
+        List<ShapeDef> drawn = new ArrayList<ShapeDef>();
+        int[] layerStarts = new int[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            layerStarts[l] = drawn.size();
+            for (ShapeDef s : visible) {
+                if (onLayer(s, layers[l])) {
+                    drawn.add(s);
+                }
+            }
+        }
+        Shape[] shapes = new Shape[drawn.size()];
+        Stroke[] strokes = new Stroke[shapes.length];
+        Paint[] paints = new Paint[shapes.length];
+        for (int i = 0; i < shapes.length; i++) {
+            ShapeDef s = drawn.get(i);
+            shapes[i] = store.shape(s);
+            strokes[i] = store.stroke(s.style);
+            paints[i] = store.paint(s.style);
+        }
+        return new VectorDrawing(width, height, background, shapes, strokes, paints,
+                layerStarts);
+    }
+
+    public int getHistorySize() {
+        return undoStack.size();
+    }
+
+    /**
+     * Entries undone and waiting to be redone.
+     */
+    public int getRedoSize() {
+        return redoStack.size();
+    }
+
+    /**
+     * Roughly the heap held by history: stroke points not spilled to disk,
+     * entries on both stacks, ink masks and keyframes.
+     */
+    public long getHistoryBytes() {
+        return store.getBytes() + 64L * (undoStack.size() + redoStack.size())
+                + masks.getMemoryUsed() + highlighter.keyframes.getMemoryUsed()
+                + pen.keyframes.getMemoryUsed();
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    public void clear(Paint paint) {
+        commitShape(new ShapeDef(store.style(null, paint), 0, 0, 0, false, true));
+    }
+
+    public void clearHistory() {
+        erasing = false;
+        erasedNow = null;
+        clear(CLEAR_PAINT);
+        undoStack.clear();
+        redoStack.clear();
+        for (Layer layer : layers) {
+            layer.keyframes.clear();
+        }
+        masks.clear();
+        store.clear();
+        for (HistoryListener l : historyListeners) {
+            l.clearHistory();
+        }
+    }
+
+    public void undo() {
+        endErase();
+        if (undoStack.size() > 0) {
+            ShapeDef sd = undoStack.pop();
+            redoStack.push(sd);
+            if (sd.barrier) {
+                reindex();
+                findBackground();
+            } else if (sd.erases != null) {
+                for (ShapeDef t : sd.erases) {
+                    // another erase entry may still hide it
+                    if (--t.erasures == 0) {
+                        indexAdd(t);
+                    }
+                }
+            } else {
+                indexRemove(sd);
+            }
+            for (HistoryListener l : historyListeners) {
+                l.undo();
+            }
+            repaint(Collections.singletonList(sd));
+        }
+    }
+
+    public void redo() {
+        endErase();
+        if (redoStack.size() > 0) {
+            ShapeDef sd = redoStack.pop();
+            undoStack.push(sd);
+            if (sd.barrier) {
+                index.clear();
+                findBackground();
+            } else if (sd.erases != null) {
+                for (ShapeDef t : sd.erases) {
+                    if (t.erasures++ == 0) {
+                        indexRemove(t);
+                    }
+                }
+            } else {
+                indexAdd(sd);
+            }
+            for (HistoryListener l : historyListeners) {
+                l.redo();
+            }
+            repaint(Collections.singletonList(sd));
+        }
+    }
+
+    /**
+     * Starts rebuilding the history from a journal. Until endRestore the
+     * history operations only change the stacks and draw nothing.
+     */
+    void beginRestore() {
+        restoring = true;
+    }
+
+    /**
+     * Adds a committed stroke read back from a journal or received from a
+     * broadcast, ending any stroke in progress.
+     */
+    void restoreShape(Stroke stroke, Paint paint, float[] points, int count, boolean smooth) {
+        commitShape(store.add(store.style(stroke, paint), points, count, smooth));
+    }
+
+    /**
+     * Adds an erase entry read back from a journal or received from a
+     * broadcast, for the strokes at the given depths (counted from 1 at the
+     * bottom) of the undo stack. Outside a restore it goes the way of an
+     * erase gesture that hit just those strokes.
+     */
+    void restoreErase(int[] positions) {
+        ShapeDef[] stack = undoStack.toArray(new ShapeDef[undoStack.size()]);
+        ShapeDef[] targets = new ShapeDef[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            targets[i] = stack[stack.length - positions[i]];
+        }
+        if (!restoring) {
+            endErase();
+            erasing = true;
+            erasedNow = new ArrayList<ShapeDef>();
+            hide(Arrays.asList(targets));
+            endErase();
+            return;
+        }
+        for (ShapeDef t : targets) {
+            t.erasures++;
+        }
+        commitShape(new ShapeDef(targets));
+    }
+
+    /**
+     * Draws the restored history, replaying once from the topmost clear.
+     */
+    void endRestore() {
+        restoring = false;
+        reindex();
+        findBackground();
+        for (Layer layer : layers) {
+            layer.keyframes.clear();
+            paintFromUndoStack(layer, getBounds());
+        }
+    }
+
+    public boolean isErasing() {
+        return erasing;
+    }
+
+    /**
+     * Starts a stroke eraser gesture. Every visible stroke the pointer
+     * passes within ERASER_RADIUS of, from here until endErase, is hidden
+     * straight away; together they become one history entry, so a single
+     * undo brings them all back.
+     */
+    public void beginErase(float x, float y) {
+        if (stroking || erasing) {
+            return;
+        }
+        erasing = true;
+        erasedNow = new ArrayList<ShapeDef>();
+        eraseX = x;
+        eraseY = y;
+        eraseAlong(x, y, x, y);
+    }
+
+    public void extendErase(float x, float y) {
+        if (erasing) {
+            eraseAlong(eraseX, eraseY, x, y);
+            eraseX = x;
+            eraseY = y;
+        }
+    }
+
+    public void endErase() {
+        if (erasing) {
+            erasing = false;
+            if (!erasedNow.isEmpty()) {
+                commitShape(new ShapeDef(erasedNow.toArray(new ShapeDef[erasedNow.size()])));
+            }
+            erasedNow = null;
+        }
+    }
+
+    /**
+     * How many visible strokes the eraser would take out moving from
+     * (x0, y0) to (x1, y1).
+     */
+    public int strokesCrossing(float x0, float y0, float x1, float y1) {
+        return crossing(x0, y0, x1, y1, ERASER_RADIUS).size();
+    }
+
+    public boolean isStroking() {
+        return stroking;
+    }
+
+    /**
+     * Begins a stroke at a point that reached the pointer at when, in
+     * milliseconds, for the predictor to extrapolate from.
+     */
+    public void beginStroke(float x, float y, long when) {
+        beginStroke(x, y);
+        if (predictor != null) {
+            predictor.begin(x, y, when);
+        }
+    }
+
+    public void beginStroke(float x, float y) {
+        if (stroking) {
+            clearLive();
+            fireDamaged(liveBounds);
+        }
+        stroking = true;
+        capture.begin(x, y);
+        prevX = lastX = x;
+        prevY = lastY = y;
+        liveBounds = new Rectangle(0, 0, -1, -1);
+        livePath = new Path2D.Float();
+        livePath.moveTo(x, y);
+        for (Layer layer : layers) {
+            // drawn into as the commit will, replacing the ink beneath
+            layer.live = layer.holds(paint) ? layer.image.snapshot() : null;
+        }
+        if (!historyListeners.isEmpty()) {
+            int style = store.style(stroke, paint);
+            for (HistoryListener l : historyListeners) {
+                l.strokeBegun(style, store, x, y);
+            }
+        }
+    }
+
+    /**
+     * Adds a point to the stroke in progress. The live ink follows every
+     * point; the committed shape keeps only those the simplifier needs.
+     */
+    public void extendStroke(float x, float y) {
+        if (stroking) {
+            clearPrediction();
+            capture.add(x, y);
+            inkSegment(x, y);
+            for (HistoryListener l : historyListeners) {
+                l.strokeExtended(x, y);
+            }
+        }
+    }
+
+    /**
+     * Adds a point the pointer reached at when, in milliseconds, and draws
+     * the ink the predictor expects next beyond it. That ink is only ever
+     * shown, and goes as soon as the next point arrives.
+     */
+    public void extendStroke(float x, float y, long when) {
+        extendStroke(x, y);
+        if (stroking && predictor != null) {
+            predictor.add(x, y, when);
+            inkPrediction();
+        }
+    }
+
+    public void endStroke() {
+        if (stroking) {
+            int count = capture.finish();
+            commitShape(store.add(store.style(stroke, paint),
+                    capture.points(), count, capture.isSmooth()));
+        }
+    }
+
+    /**
+     * Draws the canvas, with any stroke in progress over it, into the given
+     * canvas-space area of g. The area of g is overwritten, not blended.
+     */
+    public void compose(Graphics2D g, Rectangle area) {
+        frame().compose(g, area);
+    }
+
+    /**
+     * A frame of the canvas as it is now, stroke in progress included.
+     * The main image is brought up to date with the layers first.
+     */
+    public Frame frame() {
+        composite();
+        if (stroking) {
+            Rectangle bounds = new Rectangle(liveBounds);
+            if (!predictedBounds.isEmpty()) {
+                bounds.add(predictedBounds);
+            }
+            return new Frame(backingMain.snapshot(), backingLive.snapshot(), bounds);
+        }
+        return new Frame(backingMain.snapshot(), null, null);
+    }
+
+    /**
+     * Brings the stale area of the main image up to date: the background,
+     * the highlighter layer over it and the pen layer over that. Where the
+     * background is clear and there is no highlighter ink, the pen layer's
+     * tiles are shared rather than drawn.
+     */
+    private void composite() {
+        if (stale.isEmpty()) {
+            return;
+        }
+        composite(backingMain, stale, highlighter.image, pen.image);
+        stale.setBounds(0, 0, -1, -1);
+    }
+
+    private void composite(TiledImage target, Rectangle area, TiledImage highlighterInk,
+            TiledImage penInk) {
+        boolean clear = background instanceof Color && ((Color) background).getAlpha() == 0;
+        for (Rectangle part : target.tileAreas(area)) {
+            if (clear && highlighterInk.isClear(part)) {
+                target.copyFrom(penInk, part);
+            } else {
+                target.fill(background, part);
+                target.blend(highlighterInk, part);
+                target.blend(penInk, part);
+            }
+        }
+    }
+
+    /**
+     * Composites the area of the layers, with the stroke in progress in
+     * them, into the live image.
+     */
+    private void compositeLive(Rectangle area) {
+        composite(backingLive, area, highlighter.shown(), pen.shown());
+    }
+
+    /**
+     * Notes the background as the paint of the topmost clear on the undo
+     * stack, and the whole main image stale if that changes it.
+     */
+    private void findBackground() {
+        if (restoring) {
+            return;
+        }
+        Paint paint = CLEAR_PAINT;
+        for (ShapeDef s : undoStack) {
+            if (s.barrier) {
+                paint = store.paint(s.style);
+                break;
+            }
+        }
+        if (!paint.equals(background)) {
+            background = paint;
+            layersChanged(getBounds());
+        }
+    }
+
+    /**
+     * Notes area of the main image as behind the layers, and tells the
+     * damage listener.
+     */
+    private void layersChanged(Rectangle area) {
+        if (!area.isEmpty()) {
+            stale.add(area);
+            if (stroking) {
+                refreshLive(area);
+            }
+        }
+        fireDamaged(area);
+    }
+
+    /**
+     * Brings the live copies of the layers back into line with the layers
+     * over area after the history changed beneath the stroke in progress,
+     * drawing the stroke so far over them again.
+     */
+    private void refreshLive(Rectangle area) {
+        clearPrediction();
+        Rectangle inked = area.intersection(liveBounds);
+        for (Layer layer : layers) {
+            if (layer.live != null) {
+                layer.live.copyFrom(layer.image, area);
+                layer.live.draw(livePath, stroke, paint, inked);
+            }
+        }
+        compositeLive(inked);
+    }
+
+    /**
+     * Device-space bounds of the pixels touched by drawing shape with stroke.
+     */
+    static Rectangle strokedBounds(Stroke stroke, Shape shape) {
+        Rectangle r;
+        if (stroke instanceof BasicStroke) {
+            BasicStroke bs = (BasicStroke) stroke;
+            float pad = bs.getLineWidth() / 2;
+            if (bs.getLineJoin() == BasicStroke.JOIN_MITER) {
+                pad *= Math.max(bs.getMiterLimit(), 1.5f);
+            } else if (bs.getEndCap() == BasicStroke.CAP_SQUARE) {
+                pad *= 1.5f;
+            }
+            r = shape.getBounds();
+            int p = (int) Math.ceil(pad);
+            r.grow(p, p);
+        } else {
+            r = stroke.createStrokedShape(shape).getBounds();
+        }
+        // allow for rounding at the pixel edges
+        r.grow(1, 1);
+        return r;
+    }
+
+    private void fireDamaged(Rectangle r) {
+        if (damageListener != null && r != null && !r.isEmpty()) {
+            damageListener.damaged(r);
+        }
+    }
+
+    private Rectangle damageOf(ShapeDef sd) {
+        if (sd.bounds == null) {
+            if (sd.barrier) {
+                sd.bounds = getBounds();
+            } else if (sd.erases != null) {
+                sd.bounds = new Rectangle(0, 0, -1, -1);
+                for (ShapeDef t : sd.erases) {
+                    sd.bounds.add(damageOf(t));
+                }
+            } else {
+                sd.bounds = strokedBounds(store.stroke(sd.style), store.shape(sd))
+                        .intersection(getBounds());
+            }
+        }
+        return new Rectangle(sd.bounds);
+    }
+
+    private void indexAdd(ShapeDef sd) {
+        if (!restoring) {
+            damageOf(sd);
+            index.add(sd);
+        }
+    }
+
+    private void indexRemove(ShapeDef sd) {
+        if (!restoring) {
+            index.remove(sd);
+        }
+    }
+
+    /**
+     * Fills the index again with the strokes visible from the top of the
+     * undo stack down to the topmost clear.
+     */
+    private void reindex() {
+        if (restoring) {
+            return;
+        }
+        index.clear();
+        for (ShapeDef s : undoStack) {
+            if (s.barrier) {
+                break;
+            }
+            if (s.erases == null && s.erasures == 0) {
+                indexAdd(s);
+            }
+        }
+    }
+
+    /**
+     * Hides the visible strokes within reach of the eraser moving from
+     * (x0, y0) to (x1, y1), and redraws just the area they covered.
+     */
+    private void eraseAlong(float x0, float y0, float x1, float y1) {
+        List<ShapeDef> hit = crossing(x0, y0, x1, y1, ERASER_RADIUS);
+        if (!hit.isEmpty()) {
+            hide(hit);
+        }
+    }
+
+    /**
+     * Hides the strokes as part of the erase gesture in progress, and
+     * redraws just the area they covered.
+     */
+    private void hide(List<ShapeDef> hit) {
+        for (ShapeDef s : hit) {
+            s.erasures++;
+            index.remove(s);
+            erasedNow.add(s);
+        }
+        repaint(hit);
+    }
+
+    /**
+     * Replays, on each layer, the area the given history entries have ink
+     * on there.
+     */
+    private void repaint(List<ShapeDef> entries) {
+        if (restoring) {
+            return;
+        }
+        for (Layer layer : layers) {
+            Rectangle damage = new Rectangle(0, 0, -1, -1);
+            for (ShapeDef s : entries) {
+                if (onLayer(s, layer)) {
+                    damage.add(damageOf(s));
+                }
+            }
+            paintFromUndoStack(layer, damage);
+        }
+    }
+
+    /**
+     * Whether the entry has ink on layer: a clear covers every layer, and
+     * an erase entry the layers of the strokes it erases.
+     */
+    private boolean onLayer(ShapeDef s, Layer layer) {
+        if (s.barrier) {
+            return true;
+        }
+        if (s.erases != null) {
+            for (ShapeDef t : s.erases) {
+                if (onLayer(t, layer)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return layer.holds(store.paint(s.style));
+    }
+
+    /**
+     * The visible strokes that come within radius of the segment from
+     * (x0, y0) to (x1, y1), measured to the edge of their ink.
+     */
+    private List<ShapeDef> crossing(float x0, float y0, float x1, float y1, float radius) {
+        int left = (int) Math.floor(Math.min(x0, x1) - radius);
+        int top = (int) Math.floor(Math.min(y0, y1) - radius);
+        Rectangle area = new Rectangle(left, top,
+                (int) Math.ceil(Math.max(x0, x1) + radius) - left + 1,
+                (int) Math.ceil(Math.max(y0, y1) + radius) - top + 1);
+        List<ShapeDef> hit = new ArrayList<ShapeDef>();
+        for (ShapeDef s : index.query(area)) {
+            Stroke st = store.stroke(s.style);
+            float reach = radius + (st instanceof BasicStroke
+                    ? ((BasicStroke) st).getLineWidth() / 2 : 0.5f);
+            float[] p = store.chunk(s);
+            int end = s.offset + 2 * s.count;
+            boolean touches = s.count == 1 && StrokeSimplifier.segmentDistance(
+                    p[s.offset], p[s.offset + 1], x0, y0, x1, y1) <= reach;
+            for (int i = s.offset; !touches && i + 2 < end; i += 2) {
+                touches = segmentsDistance(p[i], p[i + 1], p[i + 2], p[i + 3],
+                        x0, y0, x1, y1) <= reach;
+            }
+            if (touches) {
+                hit.add(s);
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * Shortest distance between the segments (ax, ay)-(bx, by) and
+     * (cx, cy)-(dx, dy).
+     */
+    static float segmentsDistance(float ax, float ay, float bx, float by,
+            float cx, float cy, float dx, float dy) {
+        if (Line2D.linesIntersect(ax, ay, bx, by, cx, cy, dx, dy)) {
+            return 0;
+        }
+        return Math.min(
+                Math.min(StrokeSimplifier.segmentDistance(ax, ay, cx, cy, dx, dy),
+                        StrokeSimplifier.segmentDistance(bx, by, cx, cy, dx, dy)),
+                Math.min(StrokeSimplifier.segmentDistance(cx, cy, ax, ay, bx, by),
+                        StrokeSimplifier.segmentDistance(dx, dy, ax, ay, bx, by)));
+    }
+
+    /**
+     * Rebuilds the damaged area of a layer from the undo stack, starting at
+     * the nearest keyframe of the layer or clear below the top and replaying
+     * only the layer's shapes above it. Rasterization is clipped to the
+     * damage; when the damage spans several tiles they are replayed in
+     * parallel.
+     */
+    private void paintFromUndoStack(Layer layer, Rectangle damage) {
+        if (damage.isEmpty()) {
+            return;
+        }
+        // walk down from the top collecting shapes until a keyframe matches
+        // or a clear hides everything below. A keyframe beneath a stroke
+        // erased since is no good until the walk has passed the stroke.
+        Deque<ShapeDef> tail = new ArrayDeque<ShapeDef>();
+        Set<ShapeDef> erasedAbove = new HashSet<ShapeDef>();
+        if (erasing) {
+            erasedAbove.addAll(erasedNow);
+        }
+        int position = undoStack.size();
+        boolean fromKeyframe = false;
+        for (ShapeDef s : undoStack) {
+            if (erasedAbove.isEmpty() && layer.keyframes.has(position, s)) {
+                fromKeyframe = true;
+                break;
+            }
+            if (onLayer(s, layer)) {
+                tail.push(s);
+            }
+            position--;
+            if (s.erases != null) {
+                erasedAbove.addAll(Arrays.asList(s.erases));
+            } else {
+                erasedAbove.remove(s);
+            }
+            if (s.barrier) {
+                break;
+            }
+        }
+
+        TiledImage base = fromKeyframe ? layer.keyframes.get(position) : null;
+        boolean clearFirst = !fromKeyframe && (tail.isEmpty() || !tail.peek().barrier);
+        ShapeDef[] shapes = tail.toArray(new ShapeDef[tail.size()]);
+        Rectangle[] areas = new Rectangle[shapes.length];
+        for (int i = 0; i < shapes.length; i++) {
+            areas[i] = damageOf(shapes[i]).intersection(damage);
+        }
+        long start = System.nanoTime();
+        List<Rectangle> parts = layer.image.tileAreas(damage);
+        if (parallelism > 1 && parts.size() > 1 && shapes.length > 1) {
+            // the EDT waits for every tile, so the rebuilt area appears at once
+            replayPool().invoke(new ReplayTask(layer, parts, 0, parts.size(),
+                    base, clearFirst, shapes, areas));
+        } else {
+            replay(layer, damage, base, clearFirst, shapes, areas);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.INSTANCE.replayed(shapes.length, System.nanoTime() - start);
+        }
+        // mid-erase the stack does not yet say which strokes are hidden
+        if (!tail.isEmpty() && !erasing
+                && layer.keyframes.replayed(undoStack.size(), System.nanoTime() - start)) {
+            layer.keyframes.capture(undoStack.size(), undoStack.peek(), layer.image);
+        }
+        layersChanged(damage);
+    }
+
+    /**
+     * Rebuilds area of a layer from base (or a clear to transparent, or
+     * nothing) and the shapes, each drawn within its area. Shapes whose
+     * area misses this one are skipped without being looked at. Only the
+     * tiles under area are touched, so different tiles may be replayed on
+     * different threads at once.
+     */
+    private void replay(Layer layer, Rectangle area, TiledImage base, boolean clearFirst,
+            ShapeDef[] shapes, Rectangle[] areas) {
+        if (base != null) {
+            layer.image.copyFrom(base, area);
+        } else if (clearFirst) {
+            layer.image.fill(CLEAR_PAINT, area);
+        }
+        for (int i = 0; i < shapes.length; i++) {
+            if (areas[i].intersects(area)) {
+                draw(layer, shapes[i], areas[i].intersection(area));
+            }
+        }
+    }
+
+    /**
+     * Replays a range of tile areas, splitting it until each task has one.
+     */
+    private class ReplayTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Layer layer;
+        private final List<Rectangle> parts;
+        private final int start;
+        private final int end;
+        private final TiledImage base;
+        private final boolean clearFirst;
+        private final ShapeDef[] shapes;
+        private final Rectangle[] areas;
+
+        ReplayTask(Layer layer, List<Rectangle> parts, int start, int end, TiledImage base,
+                boolean clearFirst, ShapeDef[] shapes, Rectangle[] areas) {
+            this.layer = layer;
+            this.parts = parts;
+            this.start = start;
+            this.end = end;
+            this.base = base;
+            this.clearFirst = clearFirst;
+            this.shapes = shapes;
+            this.areas = areas;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                replay(layer, parts.get(start), base, clearFirst, shapes, areas);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new ReplayTask(layer, parts, start, middle, base, clearFirst, shapes, areas),
+                    new ReplayTask(layer, parts, middle, end, base, clearFirst, shapes, areas));
+        }
+    }
+
+    /**
+     * The pool replays run on at this canvas's parallelism, shared with
+     * every other canvas asking for as many threads.
+     */
+    private ForkJoinPool replayPool() {
+        synchronized (replayPools) {
+            ForkJoinPool pool = replayPools.get(parallelism);
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism);
+                replayPools.put(parallelism, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Renders one history entry into the area of a layer, which should lie
+     * within the entry's damage. A clear empties the layer; its paint is
+     * the background the layers are composited over.
+     */
+    private void draw(Layer layer, ShapeDef s, Rectangle area) {
+        if (s.erasures > 0 || s.erases != null) {
+            return;
+        }
+        if (s.barrier) {
+            layer.image.fill(CLEAR_PAINT, area);
+            return;
+        }
+        InkMask mask = masks.get(s);
+        if (mask == null && area.equals(s.bounds) && maskable(s)) {
+            // the whole stroke is being drawn anyway, so scan it just once
+            mask = InkMask.rasterize(store.shape(s), store.stroke(s.style), s.bounds);
+            masks.put(s, mask);
+        }
+        if (mask != null) {
+            layer.image.fill(mask, (Color) store.paint(s.style), area);
+        } else {
+            layer.image.draw(store.shape(s), store.stroke(s.style), store.paint(s.style), area);
+        }
+    }
+
+    /**
+     * Whether drawing the stroke sets its pixels to one colour regardless
+     * of the clip, so that an ink mask reproduces it exactly. One pixel
+     * wide lines take a different path through Java2D whose pixels shift
+     * with the clip, so they are always stroked, and TiledImage.draw keeps
+     * a part of one redrawn the same as the whole.
+     */
+    private boolean maskable(ShapeDef s) {
+        Stroke st = store.stroke(s.style);
+        return store.paint(s.style) instanceof Color && st instanceof BasicStroke
+                && ((BasicStroke) st).getLineWidth() > 1;
+    }
+
+    private void commitShape(ShapeDef s) {
+        if (restoring) {
+            undoStack.push(s);
+            return;
+        }
+        for (Layer layer : layers) {
+            // anything recorded above this depth was built on a different shape
+            layer.keyframes.invalidateAbove(undoStack.size());
+            if (s.barrier) {
+                // replay never needs to look beneath a clear while it is on the
+                // stack, so snapshots of what it covers are just dead weight
+                layer.keyframes.invalidateBelow(undoStack.size());
+            }
+        }
+        undoStack.push(s);
+        if (s.barrier) {
+            index.clear();
+        } else if (s.erases == null) {
+            indexAdd(s);
+        }
+        if (!historyListeners.isEmpty()) {
+            int[] positions = s.erases == null ? null : positionsOf(s.erases);
+            for (HistoryListener l : historyListeners) {
+                if (positions != null) {
+                    l.erase(positions);
+                } else {
+                    l.shape(s, store);
+                }
+            }
+        }
+        for (Layer layer : layers) {
+            if (onLayer(s, layer)) {
+                long start = System.nanoTime();
+                draw(layer, s, damageOf(s));
+                if (layer.keyframes.shapeDrawn(undoStack.size(), System.nanoTime() - start)) {
+                    layer.keyframes.capture(undoStack.size(), s, layer.image);
+                }
+            }
+        }
+        if (s.barrier) {
+            findBackground();
+        }
+        if (stroking) {
+            clearLive();
+            stroking = false;
+        }
+        layersChanged(damageOf(s));
+    }
+
+    /**
+     * The depths in the undo stack, counted from 1 at the bottom, of the
+     * given entries.
+     */
+    private int[] positionsOf(ShapeDef[] entries) {
+        Map<ShapeDef, Integer> positions = new HashMap<ShapeDef, Integer>();
+        int position = undoStack.size();
+        for (ShapeDef s : undoStack) {
+            positions.put(s, position--);
+        }
+        int[] result = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            result[i] = positions.get(entries[i]);
+        }
+        return result;
+    }
+
+    private void clearLive() {
+        Rectangle bounds = new Rectangle(liveBounds);
+        if (!predictedBounds.isEmpty()) {
+            bounds.add(predictedBounds);
+        }
+        clearPrediction();
+        for (Layer layer : layers) {
+            layer.live = null;
+        }
+        livePath = null;
+        // nothing outside these bounds is shown, so whole tiles can go
+        backingLive.reset(bounds);
+    }
+
+    /**
+     * Puts back the live ink the predicted tail was drawn over.
+     */
+    private void clearPrediction() {
+        if (!predictedBounds.isEmpty()) {
+            for (Layer layer : layers) {
+                if (layer.live != null) {
+                    layer.live.copyFrom(layer.beforePrediction, predictedBounds);
+                    layer.beforePrediction = null;
+                }
+            }
+            compositeLive(predictedBounds);
+            fireDamaged(predictedBounds);
+            predictedBounds = new Rectangle(0, 0, -1, -1);
+        }
+    }
+
+    /**
+     * Draws the predictor's guess at the next points of the stroke, from
+     * its last real point, into the live ink. Like a segment of real ink
+     * it replaces what is under it rather than blending, so translucent
+     * ink is not laid twice where the tail joins the stroke; snapshots of
+     * the live layers, sharing their tiles, keep what the tail covers.
+     */
+    private void inkPrediction() {
+        int n = predictor.predict(predicted);
+        if (n == 0) {
+            return;
+        }
+        Path2D.Float seg = new Path2D.Float();
+        seg.moveTo(lastX, lastY);
+        for (int i = 0; i < n; i++) {
+            seg.lineTo(predicted[3 * i], predicted[3 * i + 1]);
+        }
+        Rectangle damage = strokedBounds(stroke, seg).intersection(getBounds());
+        for (Layer layer : layers) {
+            if (layer.live != null) {
+                layer.beforePrediction = layer.live.snapshot();
+                layer.live.draw(seg, stroke, paint, damage);
+            }
+        }
+        compositeLive(damage);
+        predictedBounds = damage;
+        fireDamaged(damage);
+    }
+
+    /**
+     * Rasterizes the segment from the last point to (x, y) into the live
+     * copies of the layers the stroke goes on, composites and reports just
+     * the area it covers, so each drag event costs the same however long
+     * the stroke already is. The ink replaces what is beneath it, as it will
+     * once committed. The previous segment is drawn again with it so the
+     * join comes out as it would on the full path; with AlphaComposite.Src
+     * that overlap rewrites the same pixel values rather than blending
+     * translucent ink over itself.
+     */
+    private void inkSegment(float x, float y) {
+        Path2D.Float seg = new Path2D.Float();
+        seg.moveTo(prevX, prevY);
+        if (prevX != lastX || prevY != lastY) {
+            seg.lineTo(lastX, lastY);
+        }
+        seg.lineTo(x, y);
+
+        Rectangle damage = strokedBounds(stroke, seg).intersection(getBounds());
+        for (Layer layer : layers) {
+            if (layer.live != null) {
+                layer.live.draw(seg, stroke, paint, damage);
+            }
+        }
+        compositeLive(damage);
+        livePath.lineTo(x, y);
+        liveBounds.add(damage);
+        fireDamaged(damage);
+        prevX = lastX;
+        prevY = lastY;
+        lastX = x;
+        lastY = y;
+    }
+}
@@ -0,0 +1,77 @@
+package annotationtool;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsDevice;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.Timer;
+
+/**
+ * Runs a frame callback on the EDT at most once per display refresh, and
+ * only while there is work for it. Input handlers record what changed and
+ * call request(); the changes are then applied and painted together on the
+ * next tick, so a 1000 Hz pointer costs one frame per refresh rather than
+ * one per event.
+ */
+class FramePacer {
+
+    /**
+     * Applies whatever accumulated since the last frame.
+     */
+    interface Frame {
+
+        void frame();
+    }
+
+    static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final Timer timer;
+    private final Frame frame;
+    private boolean requested;
+
+    FramePacer(int refreshRate, Frame frame) {
+        this.frame = frame;
+        int delay = Math.max(1, Math.round(1000f / refreshRate));
+        timer = new Timer(delay, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tick();
+            }
+        });
+        timer.setCoalesce(true);
+        // the first change after an idle spell is shown straight away
+        timer.setInitialDelay(0);
+    }
+
+    /**
+     * The refresh rate of the device's current display mode, or the default
+     * if the platform does not report one.
+     */
+    static int refreshRate(GraphicsDevice device) {
+        DisplayMode mode = device == null ? null : device.getDisplayMode();
+        if (mode == null || mode.getRefreshRate() == DisplayMode.REFRESH_RATE_UNKNOWN) {
+            return DEFAULT_REFRESH_RATE;
+        }
+        return mode.getRefreshRate();
+    }
+
+    /**
+     * Asks for a frame at the next tick. Must be called on the EDT.
+     */
+    void request() {
+        requested = true;
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    private void tick() {
+        if (!requested) {
+            // nothing changed for a whole frame, so stop ticking until it does
+            timer.stop();
+            return;
+        }
+        requested = false;
+        frame.frame();
+    }
+}
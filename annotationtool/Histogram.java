@@ -0,0 +1,91 @@
+package annotationtool;
+
+import java.util.Arrays;
+
+/**
+ * Counts of non-negative values in log-linear buckets, after the manner of
+ * HdrHistogram: values below 64 each have a bucket of their own, and every
+ * power of two above that is split into 32 buckets, so any value is known
+ * to within about 3% in a fixed 15 KB whatever the range. Recording is a
+ * few shifts and an increment under the histogram's lock, which the one
+ * thread that normally records never has to wait for.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int EXACT = 2 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS) << SUB_BITS];
+    private long count;
+    private long total;
+    private long max;
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * The value at or below which the given fraction of the recorded values
+     * lie, as the upper edge of its bucket.
+     */
+    public synchronized long getPercentile(double fraction) {
+        long wanted = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(upperEdge(i), max);
+            }
+        }
+        return 0;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n %d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d",
+                count, getMean(), getPercentile(0.5), getPercentile(0.9),
+                getPercentile(0.99), max);
+    }
+
+    private static int index(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    private static long upperEdge(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        long sub = index - ((long) shift << SUB_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,248 @@
+package annotationtool;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Encodes and writes images, as PNG or as vector drawings, on a background
+ * thread so saving never holds up drawing. Images are written to a
+ * temporary file and renamed into place, so a numbered image file is
+ * either absent or complete. At most a fixed number of saves may be
+ * pending; further requests are refused until one finishes. Files are
+ * named on the saver thread, and the callback is told which.
+ * <p>
+ * An image with the same pixels as the last one saved is not written
+ * again; the comparison is made on the saver thread too. When writing
+ * deltas, only the part of an image that changed since the last save is
+ * written, and a line for each file goes into a manifest, prefix +
+ * "deltas.txt": "full" or "delta", the file name, and where its top left
+ * corner goes. Drawing each delta at its place, replacing pixels,
+ * over the last full image before it rebuilds the image saved.
+ */
+class ImageSaver {
+
+    /**
+     * Told, on the saver thread, how a save turned out: the file now
+     * holding it, which is the last one written if nothing had changed,
+     * and failure, null unless writing it failed.
+     */
+    interface Callback {
+
+        void done(File file, IOException failure);
+    }
+
+    /**
+     * What a save writes, encoded on the saver thread, and anything to do
+     * once it is in place.
+     */
+    private abstract static class Content {
+
+        /**
+         * Whether there is anything to write, asked on the saver thread
+         * before a file is named for it.
+         */
+        boolean changed() {
+            return true;
+        }
+
+        abstract void write(OutputStream out) throws IOException;
+
+        void written(File file) throws IOException {
+        }
+    }
+
+    static final int DEFAULT_MAX_PENDING = 2;
+
+    private final File directory;
+    private final String prefix;
+    private final String suffix;
+    private final boolean deltas;
+    private final Semaphore pending;
+    private final ThreadPoolExecutor executor;
+    private final PngEncoder encoder = new PngEncoder(
+            Integer.getInteger("annotationtool.png.level", PngEncoder.DEFAULT_LEVEL));
+    private int nextIndex = -1;
+    // saver thread only
+    private TiledImage lastImage; // as last saved, or null to write the next in full
+    private File lastFile;
+
+    ImageSaver(File directory, String prefix, String suffix, int maxPending, boolean deltas) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.deltas = deltas;
+        this.pending = new Semaphore(maxPending);
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxPending),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "image-saver");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues image to be written as PNG to the next free numbered file,
+     * returning false without queueing anything if too many saves are
+     * already pending. The image must not change after it is handed over.
+     * If it has not changed since the last save, nothing is written and
+     * the callback is given the last file again.
+     */
+    boolean save(final TiledImage image, Callback callback) {
+        return save(new Content() {
+            Rectangle area;
+
+            @Override
+            boolean changed() {
+                Rectangle changed = lastImage == null
+                        ? image.getBounds() : image.changedSince(lastImage);
+                area = deltas ? changed : image.getBounds();
+                return !changed.isEmpty();
+            }
+
+            @Override
+            void write(OutputStream out) throws IOException {
+                encoder.write(image, area, out);
+            }
+
+            @Override
+            void written(File file) throws IOException {
+                lastImage = image;
+                lastFile = file;
+                if (deltas) {
+                    String line = String.format("%s %s %d %d%n",
+                            area.equals(image.getBounds()) ? "full" : "delta",
+                            file.getName(), area.x, area.y);
+                    Files.write(new File(directory, prefix + "deltas.txt").toPath(),
+                            line.getBytes("UTF-8"), StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * As save of an image, but writing drawing as SVG, or as PDF when the
+     * files saved end in .pdf.
+     */
+    boolean save(final VectorDrawing drawing, Callback callback) {
+        final boolean pdf = suffix.equalsIgnoreCase(".pdf");
+        return save(new Content() {
+            @Override
+            void write(OutputStream out) throws IOException {
+                if (pdf) {
+                    drawing.writePdf(out);
+                } else {
+                    drawing.writeSvg(out);
+                }
+            }
+        }, callback);
+    }
+
+    private boolean save(final Content content, final Callback callback) {
+        if (!pending.tryAcquire()) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = lastFile;
+                IOException failure = null;
+                long start = System.nanoTime();
+                try {
+                    if (content.changed()) {
+                        file = allocate();
+                        write(content, file);
+                        content.written(file);
+                        if (Metrics.ENABLED) {
+                            Metrics.INSTANCE.saved(file.length(), System.nanoTime() - start);
+                        }
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                    // what comes next cannot be compared with a file that is not there
+                    lastImage = null;
+                } finally {
+                    pending.release();
+                }
+                if (callback != null) {
+                    callback.done(file, failure);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Picks the next file name. The directory is scanned once for the
+     * highest index in use; after that names are handed out from memory.
+     */
+    synchronized File allocate() {
+        if (nextIndex < 0) {
+            nextIndex = 0;
+            Pattern names = Pattern.compile(
+                    Pattern.quote(prefix) + "(\\d+)" + Pattern.quote(suffix));
+            String[] existing = directory.list();
+            if (existing != null) {
+                for (String name : existing) {
+                    Matcher m = names.matcher(name);
+                    if (m.matches() && m.group(1).length() < 10) {
+                        nextIndex = Math.max(nextIndex, Integer.parseInt(m.group(1)) + 1);
+                    }
+                }
+            }
+        }
+        return new File(directory, String.format("%s%06d%s", prefix, nextIndex++, suffix));
+    }
+
+    /**
+     * Writes the content into a temporary file beside the target, then
+     * renames it over the target.
+     */
+    private void write(Content content, File file) throws IOException {
+        Path target = file.toPath();
+        // names are handed out once, so the temporary name is ours alone
+        Path temp = target.resolveSibling("." + file.getName() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp));
+            try {
+                content.write(out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Lets queued saves finish, waiting at most the given time.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(timeout, unit);
+    }
+}
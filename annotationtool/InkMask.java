@@ -0,0 +1,92 @@
+package annotationtool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+/**
+ * The pixels a committed stroke covers, kept as runs along each row of its
+ * bounds. Drawing a stroke without antialiasing sets exactly these pixels
+ * to its paint, so once a stroke has a mask, replaying it is a matter of
+ * writing the paint along the runs that fall in the area being rebuilt,
+ * with no stroking or scan conversion at all.
+ */
+class InkMask {
+
+    final Rectangle bounds;
+    // runs of row i are at runs[rowStart[i]] up to runs[rowStart[i + 1]],
+    // as pairs of canvas x from (inclusive) and to (exclusive)
+    final int[] rowStart;
+    final int[] runs;
+
+    private InkMask(Rectangle bounds, int[] rowStart, int[] runs) {
+        this.bounds = bounds;
+        this.rowStart = rowStart;
+        this.runs = runs;
+    }
+
+    /**
+     * Scan converts shape drawn with stroke, clipped to bounds, which
+     * should hold all of its ink. Each tile's part is drawn with the same
+     * translation TiledImage uses, since the odd edge pixel of a stroke
+     * depends on where device space starts.
+     */
+    static InkMask rasterize(Shape shape, Stroke stroke, Rectangle bounds) {
+        int size = TiledImage.TILE_SIZE;
+        int firstCol = bounds.x / size;
+        int lastCol = (bounds.x + bounds.width - 1) / size;
+        BufferedImage[] scratch = new BufferedImage[lastCol - firstCol + 1];
+        int[] rowStart = new int[bounds.height + 1];
+        int[] runs = new int[64];
+        int n = 0;
+        for (int top = bounds.y / size * size; top < bounds.y + bounds.height; top += size) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+                Graphics2D g = image.createGraphics();
+                g.translate(-col * size, -top);
+                g.clip(bounds);
+                g.setStroke(stroke);
+                g.setPaint(Color.WHITE);
+                g.draw(shape);
+                g.dispose();
+                scratch[col - firstCol] = image;
+            }
+            int bottom = Math.min(top + size, bounds.y + bounds.height);
+            for (int y = Math.max(top, bounds.y); y < bottom; y++) {
+                rowStart[y - bounds.y] = n;
+                for (int col = firstCol; col <= lastCol; col++) {
+                    byte[] pixels = ((DataBufferByte) scratch[col - firstCol].getRaster()
+                            .getDataBuffer()).getData();
+                    int left = col * size;
+                    int i = (y - top) * size - left;
+                    int end = Math.min(left + size, bounds.x + bounds.width);
+                    for (int x = Math.max(left, bounds.x); x < end; x++) {
+                        if (pixels[i + x] == 0) {
+                            continue;
+                        }
+                        int from = x;
+                        while (x < end && pixels[i + x] != 0) {
+                            x++;
+                        }
+                        if (n + 2 > runs.length) {
+                            runs = Arrays.copyOf(runs, 2 * runs.length);
+                        }
+                        runs[n++] = from;
+                        runs[n++] = x;
+                    }
+                }
+            }
+        }
+        rowStart[bounds.height] = n;
+        return new InkMask(new Rectangle(bounds), rowStart, Arrays.copyOf(runs, n));
+    }
+
+    long size() {
+        return 4L * (rowStart.length + runs.length) + 64;
+    }
+}
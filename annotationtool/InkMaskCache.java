@@ -0,0 +1,61 @@
+package annotationtool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ink masks of committed strokes, held against a memory ceiling and
+ * evicted least recently used first. A stroke without a mask is simply
+ * stroked again when it is replayed. Replay may run on several threads at
+ * once, so every method holds the cache's lock.
+ */
+class InkMaskCache {
+
+    static final long DEFAULT_MEMORY_CEILING = 64L * 1024 * 1024;
+
+    private final long memoryCeiling;
+    // access ordered, so iteration runs least to most recently used
+    private final LinkedHashMap<ShapeDef, InkMask> masks
+            = new LinkedHashMap<ShapeDef, InkMask>(16, 0.75f, true);
+    private long memoryUsed;
+
+    InkMaskCache(long memoryCeiling) {
+        this.memoryCeiling = memoryCeiling;
+    }
+
+    synchronized InkMask get(ShapeDef sd) {
+        return masks.get(sd);
+    }
+
+    synchronized void put(ShapeDef sd, InkMask mask) {
+        long size = mask.size();
+        if (size > memoryCeiling) {
+            return;
+        }
+        remove(sd);
+        Iterator<Map.Entry<ShapeDef, InkMask>> it = masks.entrySet().iterator();
+        while (memoryUsed + size > memoryCeiling && it.hasNext()) {
+            memoryUsed -= it.next().getValue().size();
+            it.remove();
+        }
+        masks.put(sd, mask);
+        memoryUsed += size;
+    }
+
+    synchronized void remove(ShapeDef sd) {
+        InkMask mask = masks.remove(sd);
+        if (mask != null) {
+            memoryUsed -= mask.size();
+        }
+    }
+
+    synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    synchronized void clear() {
+        masks.clear();
+        memoryUsed = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package annotationtool;
+
+/**
+ * Guesses where the pointer is heading from the last few points of a
+ * stroke and when they arrived, so the ink can run a little ahead of the
+ * last real point and make up for the time a point takes to reach the
+ * screen. The guess is a straight line at the pointer's recent velocity,
+ * one and two event intervals on, no further than the horizon. The
+ * canvas only draws it, never commits it, and throws it away as soon as
+ * the next real point arrives.
+ * <p>
+ * Times are in milliseconds, as MouseEvent.getWhen gives them. Several
+ * events may share one millisecond, so the velocity is taken across all
+ * the points of the last WINDOW_MILLIS rather than between neighbours.
+ */
+public class InkPredictor {
+
+    static final int SAMPLES = 8;
+    static final long WINDOW_MILLIS = 40; // older points say little about where it is going
+    static final float MIN_SPEED = 0.05f; // pixels a millisecond; slower is a pause
+    static final float MAX_LEAD = 48; // pixels, so a sudden flick is not overshot far
+
+    private final long horizonMillis;
+    private final float[] xs = new float[SAMPLES];
+    private final float[] ys = new float[SAMPLES];
+    private final long[] times = new long[SAMPLES];
+    private int count; // points held, at most SAMPLES
+    private int newest; // index of the last point added
+
+    /**
+     * A predictor looking at most horizonMillis past the last point.
+     */
+    public InkPredictor(long horizonMillis) {
+        this.horizonMillis = horizonMillis;
+    }
+
+    public long getHorizonMillis() {
+        return horizonMillis;
+    }
+
+    /**
+     * Starts a new stroke at (x, y), forgetting the last one.
+     */
+    public void begin(float x, float y, long when) {
+        count = 0;
+        add(x, y, when);
+    }
+
+    public void add(float x, float y, long when) {
+        newest = (newest + 1) % SAMPLES;
+        xs[newest] = x;
+        ys[newest] = y;
+        times[newest] = when;
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    /**
+     * Writes up to two predicted points after the last one added into out,
+     * each as x, y and how many milliseconds ahead it is, returning how
+     * many were written. None are when the pointer has only just started
+     * or has stopped.
+     */
+    public int predict(float[] out) {
+        int oldest = newest;
+        int used = 1;
+        while (used < count) {
+            int i = (oldest + SAMPLES - 1) % SAMPLES;
+            if (times[newest] - times[i] > WINDOW_MILLIS) {
+                break;
+            }
+            oldest = i;
+            used++;
+        }
+        long span = times[newest] - times[oldest];
+        if (used < 2 || span <= 0) {
+            return 0;
+        }
+        float vx = (xs[newest] - xs[oldest]) / span;
+        float vy = (ys[newest] - ys[oldest]) / span;
+        float speed = (float) Math.hypot(vx, vy);
+        if (speed < MIN_SPEED) {
+            return 0;
+        }
+        float interval = Math.max(1, Math.min(horizonMillis, (float) span / (used - 1)));
+        int n = 0;
+        for (int k = 1; k <= 2; k++) {
+            float lead = Math.min(k * interval, horizonMillis);
+            if (n > 0 && lead <= out[3 * n - 1]) {
+                break;
+            }
+            float scale = Math.min(lead, MAX_LEAD / speed);
+            out[3 * n] = xs[newest] + vx * scale;
+            out[3 * n + 1] = ys[newest] + vy * scale;
+            out[3 * n + 2] = lead;
+            n++;
+        }
+        return n;
+    }
+}
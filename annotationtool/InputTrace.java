@@ -0,0 +1,111 @@
+package annotationtool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The pointer positions of the strokes drawn, with the times the events
+ * carried, written a line each as "press", "drag" or "release", x, y and
+ * MouseEvent.getWhen. Traces recorded from real sessions can be replayed
+ * through an InkPredictor to see how far its guesses are out.
+ */
+public class InputTrace {
+
+    /**
+     * The points of one recorded stroke, as x, y pairs, and their times.
+     */
+    public static class Stroke {
+
+        public final float[] points;
+        public final long[] times;
+        public final int count;
+
+        public Stroke(float[] points, long[] times, int count) {
+            this.points = points;
+            this.times = times;
+            this.count = count;
+        }
+    }
+
+    private final Writer out;
+
+    public InputTrace(File file) throws IOException {
+        out = new BufferedWriter(new FileWriter(file));
+    }
+
+    public void press(float x, float y, long when) throws IOException {
+        write("press", x, y, when);
+    }
+
+    public void drag(float x, float y, long when) throws IOException {
+        write("drag", x, y, when);
+    }
+
+    public void release(float x, float y, long when) throws IOException {
+        write("release", x, y, when);
+    }
+
+    private void write(String type, float x, float y, long when) throws IOException {
+        out.write(type + " " + x + " " + y + " " + when + "\n");
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * The strokes in a trace, each from its press through its drags; a
+     * stroke the trace ends in the middle of is included as far as it got.
+     */
+    public static List<Stroke> read(File file) throws IOException {
+        List<Stroke> strokes = new ArrayList<Stroke>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            float[] points = null;
+            long[] times = null;
+            int count = 0;
+            for (String line; (line = in.readLine()) != null; ) {
+                String[] f = line.trim().split(" ");
+                if (f.length != 4) {
+                    continue;
+                }
+                if (f[0].equals("press")) {
+                    if (count > 0) {
+                        strokes.add(new Stroke(points, times, count));
+                    }
+                    points = new float[64];
+                    times = new long[32];
+                    count = 0;
+                } else if (points == null || !f[0].equals("drag")) {
+                    if (count > 0 && f[0].equals("release")) {
+                        strokes.add(new Stroke(points, times, count));
+                        points = null;
+                        count = 0;
+                    }
+                    continue;
+                }
+                if (count == times.length) {
+                    points = Arrays.copyOf(points, 4 * count);
+                    times = Arrays.copyOf(times, 2 * count);
+                }
+                points[2 * count] = Float.parseFloat(f[1]);
+                points[2 * count + 1] = Float.parseFloat(f[2]);
+                times[count++] = Long.parseLong(f[3]);
+            }
+            if (count > 0) {
+                strokes.add(new Stroke(points, times, count));
+            }
+        } finally {
+            in.close();
+        }
+        return strokes;
+    }
+}
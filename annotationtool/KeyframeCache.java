@@ -0,0 +1,181 @@
+package annotationtool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Raster snapshots of one of the canvas's layers taken at known undo stack
+ * depths, so replay can start from the nearest snapshot instead of the
+ * first shape. Snapshots are held against a memory ceiling and evicted by
+ * policy. They share tiles with the layer, so the ceiling counts each
+ * snapshot's tiles in full even though tiles the layer has not redrawn
+ * since cost nothing extra.
+ */
+class KeyframeCache {
+
+    enum EvictionPolicy {
+        /** drop the snapshot that was taken or used longest ago */
+        LEAST_RECENTLY_USED,
+        /** drop the snapshot deepest in the history, undo rarely goes there */
+        OLDEST_POSITION
+    }
+
+    static final long DEFAULT_MEMORY_CEILING = 128L * 1024 * 1024;
+    static final int DEFAULT_INTERVAL = 50;
+    static final long DEFAULT_REPLAY_MILLIS = 40;
+
+    private static class Keyframe {
+
+        final int position;
+        final Object top;
+        final TiledImage image;
+        final long size;
+
+        Keyframe(int position, Object top, TiledImage image) {
+            this.position = position;
+            this.top = top;
+            this.image = image;
+            this.size = image.getPixelBytes();
+        }
+    }
+
+    private final long memoryCeiling;
+    private final int interval;
+    private final long replayNanos;
+    private final EvictionPolicy policy;
+
+    // access ordered, so iteration runs least to most recently used
+    private final LinkedHashMap<Integer, Keyframe> keyframes
+            = new LinkedHashMap<Integer, Keyframe>(16, 0.75f, true);
+    private long memoryUsed;
+    private long costSinceKeyframe;
+
+    KeyframeCache(long memoryCeiling, int interval, long replayMillis,
+            EvictionPolicy policy) {
+        this.memoryCeiling = memoryCeiling;
+        this.interval = interval;
+        this.replayNanos = replayMillis * 1000000L;
+        this.policy = policy;
+    }
+
+    /**
+     * Records the time spent drawing one more shape on top of the latest
+     * keyframe and reports whether the stack depth reached is due a keyframe.
+     */
+    boolean shapeDrawn(int position, long nanos) {
+        costSinceKeyframe += nanos;
+        return (interval > 0 && position % interval == 0)
+                || costSinceKeyframe >= replayNanos;
+    }
+
+    /**
+     * Records the time a replay of the shapes above the nearest keyframe took
+     * and reports whether the depth reached is worth a keyframe of its own.
+     */
+    boolean replayed(int position, long nanos) {
+        costSinceKeyframe = 0;
+        return shapeDrawn(position, nanos);
+    }
+
+    /**
+     * True if the keyframe at this position was taken with top as the
+     * uppermost shape on the stack.
+     */
+    boolean has(int position, Object top) {
+        Keyframe k = keyframes.get(position);
+        return k != null && k.top == top;
+    }
+
+    /**
+     * Snapshots the current state of the source image as the keyframe for
+     * the given stack depth. A cache with no memory keeps nothing, not even
+     * snapshots of tiles without pixels, so that every replay starts from
+     * the first shape.
+     */
+    void capture(int position, Object top, TiledImage source) {
+        costSinceKeyframe = 0;
+        long size = source.getPixelBytes();
+        if (size > memoryCeiling || memoryCeiling == 0) {
+            return;
+        }
+        remove(position);
+        while (memoryUsed + size > memoryCeiling && !keyframes.isEmpty()) {
+            evictOne();
+        }
+        Keyframe k = new Keyframe(position, top, source.snapshot());
+        keyframes.put(position, k);
+        memoryUsed += k.size;
+    }
+
+    /**
+     * The keyframe for the given depth, to be copied from but never drawn
+     * into.
+     */
+    TiledImage get(int position) {
+        return keyframes.get(position).image;
+    }
+
+    /**
+     * Bytes of snapshot pixels held, counting shared tiles in full.
+     */
+    long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * Forgets keyframes above the given depth; called when the shape at
+     * that depth is replaced by a different one.
+     */
+    void invalidateAbove(int position) {
+        Iterator<Map.Entry<Integer, Keyframe>> it = keyframes.entrySet().iterator();
+        while (it.hasNext()) {
+            Keyframe k = it.next().getValue();
+            if (k.position > position) {
+                memoryUsed -= k.size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets keyframes at or below the given depth.
+     */
+    void invalidateBelow(int position) {
+        Iterator<Map.Entry<Integer, Keyframe>> it = keyframes.entrySet().iterator();
+        while (it.hasNext()) {
+            Keyframe k = it.next().getValue();
+            if (k.position <= position) {
+                memoryUsed -= k.size;
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        keyframes.clear();
+        memoryUsed = 0;
+        costSinceKeyframe = 0;
+    }
+
+    private void remove(int position) {
+        Keyframe k = keyframes.remove(position);
+        if (k != null) {
+            memoryUsed -= k.size;
+        }
+    }
+
+    private void evictOne() {
+        Keyframe victim = null;
+        for (Keyframe k : keyframes.values()) {
+            if (policy == EvictionPolicy.LEAST_RECENTLY_USED) {
+                victim = k;
+                break;
+            }
+            if (victim == null || k.position < victim.position) {
+                victim = k;
+            }
+        }
+        remove(victim.position);
+    }
+}
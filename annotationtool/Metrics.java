@@ -0,0 +1,239 @@
+package annotationtool;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Histograms and gauges of how drawing, painting and saving perform, for
+ * watching the tool in use. Off unless annotationtool.metrics is true;
+ * every place that records checks ENABLED first, which is a constant, so
+ * when off the recording code is compiled away. When on, the figures are
+ * published as the MXBean annotationtool:type=Metrics and, if
+ * annotationtool.metrics.logSeconds is set, printed that often.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("annotationtool.metrics");
+    public static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * A histogram as JMX sees it.
+     */
+    public static class Summary {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Summary(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        Summary(Histogram h) {
+            this(h.getCount(), h.getMean(), h.getPercentile(0.5), h.getPercentile(0.9),
+                    h.getPercentile(0.99), h.getMax());
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    private final Histogram paintMicros = new Histogram();
+    private final Histogram pixelsPerPaint = new Histogram();
+    private final Histogram inputToPaintMicros = new Histogram();
+    private final Histogram replayMicros = new Histogram();
+    private final Histogram replayShapes = new Histogram();
+    private final Histogram saveMicros = new Histogram();
+    private final Histogram saveBytes = new Histogram();
+    private volatile RenderThread renderer;
+    private volatile long historyShapes;
+    private volatile long historyBytes;
+    private boolean started;
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers the MXBean and starts the periodic log line, if asked for,
+     * taking input-to-frame times from renderer.
+     */
+    public synchronized void start(RenderThread renderer) {
+        this.renderer = renderer;
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("annotationtool:type=Metrics"));
+        } catch (JMException ex) {
+            System.err.println("Metrics not registered: " + ex.getMessage());
+        }
+        long seconds = Long.getLong("annotationtool.metrics.logSeconds", 0);
+        if (seconds > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "metrics-log");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            logger.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println(Metrics.this);
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    void painted(int pixels, long nanos) {
+        paintMicros.record(nanos / 1000);
+        pixelsPerPaint.record(pixels);
+    }
+
+    void inputPainted(long nanos) {
+        inputToPaintMicros.record(nanos / 1000);
+    }
+
+    void replayed(int shapes, long nanos) {
+        replayMicros.record(nanos / 1000);
+        replayShapes.record(shapes);
+    }
+
+    void saved(long bytes, long nanos) {
+        saveMicros.record(nanos / 1000);
+        saveBytes.record(bytes);
+    }
+
+    void history(long shapes, long bytes) {
+        historyShapes = shapes;
+        historyBytes = bytes;
+    }
+
+    @Override
+    public Summary getPaintMicros() {
+        return new Summary(paintMicros);
+    }
+
+    @Override
+    public Summary getPixelsPerPaint() {
+        return new Summary(pixelsPerPaint);
+    }
+
+    @Override
+    public Summary getInputToFrameMicros() {
+        RenderThread r = renderer;
+        return new Summary(r == null ? new Histogram() : r.getLatency());
+    }
+
+    @Override
+    public Summary getInputToPaintMicros() {
+        return new Summary(inputToPaintMicros);
+    }
+
+    @Override
+    public Summary getReplayMicros() {
+        return new Summary(replayMicros);
+    }
+
+    @Override
+    public Summary getReplayShapes() {
+        return new Summary(replayShapes);
+    }
+
+    @Override
+    public Summary getSaveMicros() {
+        return new Summary(saveMicros);
+    }
+
+    @Override
+    public Summary getSaveBytes() {
+        return new Summary(saveBytes);
+    }
+
+    @Override
+    public long getHistoryShapes() {
+        return historyShapes;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    @Override
+    public void reset() {
+        paintMicros.reset();
+        pixelsPerPaint.reset();
+        inputToPaintMicros.reset();
+        replayMicros.reset();
+        replayShapes.reset();
+        saveMicros.reset();
+        saveBytes.reset();
+        RenderThread r = renderer;
+        if (r != null) {
+            r.getLatency().reset();
+        }
+    }
+
+    /**
+     * One line with the figures that matter most: 99th percentiles of the
+     * times, medians of the sizes.
+     */
+    @Override
+    public String toString() {
+        Summary paint = getPaintMicros();
+        Summary frame = getInputToFrameMicros();
+        Summary shown = getInputToPaintMicros();
+        Summary replay = getReplayMicros();
+        Summary save = getSaveMicros();
+        return String.format("Metrics: paint %d x p99 %d us (p50 %d px),"
+                + " input to frame p99 %d us, to paint p99 %d us,"
+                + " replay %d x p99 %d us (p50 %d shapes), save %d x p99 %d us,"
+                + " history %d shapes %d KB",
+                paint.getCount(), paint.getP99(), getPixelsPerPaint().getP50(),
+                frame.getP99(), shown.getP99(),
+                replay.getCount(), replay.getP99(), getReplayShapes().getP50(),
+                save.getCount(), save.getP99(),
+                historyShapes, historyBytes / 1024);
+    }
+}
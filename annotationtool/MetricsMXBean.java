@@ -0,0 +1,41 @@
+package annotationtool;
+
+/**
+ * The performance figures an AnnotationTool gathers when started with
+ * annotationtool.metrics=true, as seen through JMX. Durations are in
+ * microseconds.
+ */
+public interface MetricsMXBean {
+
+    /** time paint took to composite and blit */
+    Metrics.Summary getPaintMicros();
+
+    /** canvas pixels composited by each paint */
+    Metrics.Summary getPixelsPerPaint();
+
+    /** from posting input to the frame showing it being published */
+    Metrics.Summary getInputToFrameMicros();
+
+    /** from posting input to the frame showing it first being painted */
+    Metrics.Summary getInputToPaintMicros();
+
+    /** time spent rebuilding an area from the undo stack */
+    Metrics.Summary getReplayMicros();
+
+    /** history entries replayed by each rebuild */
+    Metrics.Summary getReplayShapes();
+
+    /** time to encode and write each saved image */
+    Metrics.Summary getSaveMicros();
+
+    /** size of each saved image file */
+    Metrics.Summary getSaveBytes();
+
+    /** entries on the undo and redo stacks */
+    long getHistoryShapes();
+
+    /** heap held by history: stroke points, entries, masks and keyframes */
+    long getHistoryBytes();
+
+    void reset();
+}
@@ -0,0 +1,440 @@
+package annotationtool;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGBA PNGs, filtering and deflating bands of rows in
+ * parallel. Each band is compressed independently (primed with the tail of
+ * the band above as its dictionary) and sync-flushed, so the bands simply
+ * concatenate into one valid zlib stream; their Adler-32 checksums are
+ * combined rather than recomputed. Pixels of TYPE_INT_ARGB and TYPE_INT_RGB
+ * images are read straight from the raster's DataBuffer, and TiledImages
+ * are read a tile at a time.
+ */
+public class PngEncoder {
+
+    public static final int DEFAULT_LEVEL = 4;
+
+    private static final byte[] SIGNATURE = {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+    private static final int BAND_BYTES = 256 * 1024;
+    private static final int WINDOW = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private static ExecutorService sharedPool;
+
+    private final int level;
+    private final ExecutorService executor;
+
+    /**
+     * An encoder at the given deflate level, 1 (fastest) to 9 (smallest),
+     * sharing a pool of one thread per processor.
+     */
+    public PngEncoder(int level) {
+        this(level, sharedPool());
+    }
+
+    /**
+     * An encoder at the given deflate level running its bands on executor;
+     * with a null executor bands are encoded on the calling thread.
+     */
+    public PngEncoder(int level, ExecutorService executor) {
+        this.level = Math.max(1, Math.min(9, level));
+        this.executor = executor;
+    }
+
+    private static synchronized ExecutorService sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "png-encoder");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return sharedPool;
+    }
+
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        write(new PixelSource(image), image.getWidth(), image.getHeight(), out);
+    }
+
+    /**
+     * Writes a tiled image; rows are read tile by tile, and tiles without
+     * pixels of their own are expanded from their colour as they are read.
+     */
+    public void write(TiledImage image, OutputStream out) throws IOException {
+        write(image, image.getBounds(), out);
+    }
+
+    /**
+     * Writes just the given area of a tiled image, which must lie inside
+     * it, as an image of the area's size.
+     */
+    public void write(TiledImage image, Rectangle area, OutputStream out) throws IOException {
+        write(new PixelSource(image, area), area.width, area.height, out);
+    }
+
+    private void write(PixelSource source, int w, int h, OutputStream out) throws IOException {
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream hdr = new DataOutputStream(header);
+        hdr.writeInt(w);
+        hdr.writeInt(h);
+        hdr.writeByte(8); // bit depth
+        hdr.writeByte(6); // RGBA
+        hdr.writeByte(0); // deflate
+        hdr.writeByte(0); // adaptive filtering
+        hdr.writeByte(0); // not interlaced
+        writeChunk(data, "IHDR", header.toByteArray(), 13, null);
+
+        int rowBytes = 1 + 4 * w;
+        int bandRows = Math.max(1, BAND_BYTES / rowBytes);
+        List<Future<Band>> bands = new ArrayList<Future<Band>>();
+        List<Band> done = new ArrayList<Band>();
+        for (int y = 0; y < h; y += bandRows) {
+            BandTask task = new BandTask(source, y, Math.min(h, y + bandRows), y == 0);
+            if (executor == null) {
+                done.add(task.call());
+            } else {
+                bands.add(executor.submit(task));
+            }
+        }
+
+        long adler = 1;
+        int count = executor == null ? done.size() : bands.size();
+        for (int i = 0; i < count; i++) {
+            Band band = executor == null ? done.get(i) : await(bands.get(i));
+            adler = combineAdler(adler, band.adler, band.rawLength);
+            byte[] trailer = null;
+            if (i == count - 1) {
+                trailer = new byte[]{
+                    (byte) (adler >>> 24), (byte) (adler >>> 16),
+                    (byte) (adler >>> 8), (byte) adler
+                };
+            }
+            writeChunk(data, "IDAT", band.compressed, band.length, trailer);
+        }
+        writeChunk(data, "IEND", new byte[0], 0, null);
+        data.flush();
+    }
+
+    private static Band await(Future<Band> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Encoding failed", ex.getCause());
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type,
+            byte[] data, int length, byte[] trailer) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        int total = length + (trailer == null ? 0 : trailer.length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(total);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        if (trailer != null) {
+            crc.update(trailer);
+            out.write(trailer);
+        }
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * The Adler-32 of two byte sequences joined, given the checksum of each
+     * and the length of the second; as zlib's adler32_combine.
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static class Band {
+
+        byte[] compressed;
+        int length;
+        long adler;
+        int rawLength;
+    }
+
+    /**
+     * Reads rows of an image as RGBA bytes.
+     */
+    private static class PixelSource {
+
+        final BufferedImage image;
+        final TiledImage tiled;
+        final int width;
+        final int height;
+        final int[] pixels; // null when the image has to go through getRGB
+        final int offset;
+        final int stride;
+        final boolean opaque;
+        final int left; // of the area of a tiled image read
+        final int top;
+
+        PixelSource(TiledImage tiled, Rectangle area) {
+            this.image = null;
+            this.tiled = tiled;
+            this.width = area.width;
+            this.height = area.height;
+            pixels = null;
+            offset = 0;
+            stride = tiled.getWidth();
+            opaque = false;
+            left = area.x;
+            top = area.y;
+        }
+
+        PixelSource(BufferedImage image) {
+            this.image = image;
+            this.tiled = null;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            WritableRaster raster = image.getRaster();
+            int type = image.getType();
+            if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                    && raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+                stride = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                        .getScanlineStride();
+                pixels = db.getData();
+                offset = db.getOffset()
+                        - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX();
+            } else {
+                pixels = null;
+                offset = 0;
+                stride = width;
+            }
+            opaque = type == BufferedImage.TYPE_INT_RGB;
+            left = 0;
+            top = 0;
+        }
+
+        void readRow(int y, byte[] row, int[] scratch) {
+            int[] src = pixels;
+            int base = offset + y * stride;
+            if (tiled != null) {
+                tiled.getRow(top + y, scratch);
+                src = scratch;
+                base = left;
+            } else if (src == null) {
+                image.getRGB(0, y, width, 1, scratch, 0, width);
+                src = scratch;
+                base = 0;
+            }
+            for (int x = 0, i = 0; x < width; x++) {
+                int argb = src[base + x];
+                row[i++] = (byte) (argb >>> 16);
+                row[i++] = (byte) (argb >>> 8);
+                row[i++] = (byte) argb;
+                row[i++] = opaque ? (byte) 255 : (byte) (argb >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Filters and deflates rows [start, end) of the image.
+     */
+    private class BandTask implements Callable<Band> {
+
+        private final PixelSource source;
+        private final int start;
+        private final int end;
+        private final boolean first;
+
+        BandTask(PixelSource source, int start, int end, boolean first) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.first = first;
+        }
+
+        @Override
+        public Band call() {
+            int lineBytes = 4 * source.width;
+            int rowBytes = 1 + lineBytes;
+            // rows of the band above that make up the deflate window
+            int dictRows = first ? 0 : Math.min(start, (WINDOW + rowBytes - 1) / rowBytes);
+            int from = start - dictRows;
+
+            byte[] filtered = new byte[(end - from) * rowBytes];
+            byte[] prior = new byte[lineBytes];
+            byte[] current = new byte[lineBytes];
+            int[] scratch = source.pixels == null ? new int[source.stride] : null;
+            if (from > 0) {
+                source.readRow(from - 1, prior, scratch);
+            }
+            for (int y = from; y < end; y++) {
+                source.readRow(y, current, scratch);
+                filterRow(current, prior, filtered, (y - from) * rowBytes, y == 0);
+                byte[] t = prior;
+                prior = current;
+                current = t;
+            }
+
+            int dictLength = dictRows * rowBytes;
+            int rawLength = filtered.length - dictLength;
+            Deflater deflater = new Deflater(level, true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(rawLength / 4 + 64);
+            if (first) {
+                out.write(0x78);
+                out.write(level < 2 ? 0x01 : level < 6 ? 0x5e : level == 6 ? 0x9c : 0xda);
+            }
+            if (dictLength > 0) {
+                int window = Math.min(WINDOW, dictLength);
+                deflater.setDictionary(filtered, dictLength - window, window);
+            }
+            deflater.setInput(filtered, dictLength, rawLength);
+            byte[] buf = new byte[64 * 1024];
+            if (end == source.height) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    out.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            deflater.end();
+
+            Adler32 adler = new Adler32();
+            adler.update(filtered, dictLength, rawLength);
+
+            Band band = new Band();
+            band.compressed = out.toByteArray();
+            band.length = band.compressed.length;
+            band.adler = adler.getValue();
+            band.rawLength = rawLength;
+            return band;
+        }
+
+        /**
+         * Writes the filter type byte and filtered row into out at pos. The
+         * fastest levels always use Sub and the middle ones Up, which suits
+         * mostly empty annotation layers; from level 6 each row gets whichever
+         * of None, Sub, Up and Paeth has the smallest sum of absolute values.
+         */
+        private void filterRow(byte[] row, byte[] prior, byte[] out, int pos, boolean top) {
+            int n = row.length;
+            int type;
+            if (level <= 2) {
+                type = 1;
+            } else if (level <= 5) {
+                type = 2;
+            } else {
+                long none = 0, sub = 0, up = 0, paeth = 0;
+                for (int i = 0; i < n; i++) {
+                    int a = i >= 4 ? row[i - 4] & 0xff : 0;
+                    int b = top ? 0 : prior[i] & 0xff;
+                    int c = i >= 4 && !top ? prior[i - 4] & 0xff : 0;
+                    int x = row[i] & 0xff;
+                    none += x;
+                    sub += Math.abs((byte) (x - a));
+                    up += Math.abs((byte) (x - b));
+                    paeth += Math.abs((byte) (x - paethPredictor(a, b, c)));
+                }
+                type = 0;
+                long best = none;
+                if (sub < best) {
+                    type = 1;
+                    best = sub;
+                }
+                if (up < best) {
+                    type = 2;
+                    best = up;
+                }
+                if (paeth < best) {
+                    type = 4;
+                }
+            }
+            out[pos++] = (byte) type;
+            for (int i = 0; i < n; i++) {
+                int a = i >= 4 ? row[i - 4] & 0xff : 0;
+                int b = top ? 0 : prior[i] & 0xff;
+                int c = i >= 4 && !top ? prior[i - 4] & 0xff : 0;
+                int x = row[i] & 0xff;
+                switch (type) {
+                    case 1:
+                        x -= a;
+                        break;
+                    case 2:
+                        x -= b;
+                        break;
+                    case 4:
+                        x -= paethPredictor(a, b, c);
+                        break;
+                    default:
+                        break;
+                }
+                out[pos + i] = (byte) x;
+            }
+        }
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+}
@@ -0,0 +1,200 @@
+package annotationtool;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread that owns a DrawingCanvas, so neither rasterizing strokes nor
+ * replaying history ever runs on the thread handling input. Other threads
+ * only post commands, onto a lock-free queue. The render thread runs them in
+ * order and then publishes a frame: a snapshot of the canvas whose tiles
+ * are shared copy-on-write, so the canvas can carry on drawing while the
+ * frame is shown. Its tiles are the front buffer and the canvas's own are
+ * the back buffer.
+ * <p>
+ * The time from posting each command to publishing the first frame that
+ * shows it is recorded in a histogram, in microseconds.
+ */
+public class RenderThread {
+
+    /**
+     * Something to do to the canvas, on the render thread.
+     */
+    public interface Command {
+
+        void run(DrawingCanvas canvas);
+    }
+
+    /**
+     * Told, on the render thread, about each frame published and the
+     * canvas-space area that differs from the frame before.
+     */
+    public interface Listener {
+
+        void framePublished(Rectangle damage);
+    }
+
+    private static class Shown {
+
+        final DrawingCanvas.Frame frame;
+        final long inputNanos;
+
+        Shown(DrawingCanvas.Frame frame, long inputNanos) {
+            this.frame = frame;
+            this.inputNanos = inputNanos;
+        }
+    }
+
+    private static class Posted {
+
+        final Command command;
+        final long nanos;
+
+        Posted(Command command, long nanos) {
+            this.command = command;
+            this.nanos = nanos;
+        }
+    }
+
+    private final DrawingCanvas canvas;
+    private final Listener listener;
+    private final long frameNanos;
+    private final ConcurrentLinkedQueue<Posted> queue = new ConcurrentLinkedQueue<Posted>();
+    private final Thread thread;
+    private final Histogram latency = new Histogram();
+
+    private volatile Shown shown;
+    private volatile boolean stopping;
+
+    // render thread only
+    private final Rectangle damage = new Rectangle(0, 0, -1, -1);
+    private long[] batch = new long[64]; // post times of commands not yet shown
+    private int batchSize;
+
+    /**
+     * A render thread for canvas, which from now on must only be touched
+     * by commands. However fast commands arrive, a frame is published at
+     * least every frameMillis.
+     */
+    public RenderThread(DrawingCanvas canvas, long frameMillis, Listener listener) {
+        this.canvas = canvas;
+        this.listener = listener;
+        this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+        canvas.setDamageListener(new DrawingCanvas.DamageListener() {
+            @Override
+            public void damaged(Rectangle area) {
+                damage.add(area);
+            }
+        });
+        shown = new Shown(canvas.frame(), 0);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        }, "render");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues command to run on the render thread after everything posted
+     * before it.
+     */
+    public void post(Command command) {
+        queue.add(new Posted(command, System.nanoTime()));
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * The latest published frame, which never changes; safe to show from
+     * any thread.
+     */
+    public DrawingCanvas.Frame getFrame() {
+        return shown.frame;
+    }
+
+    /**
+     * When the oldest command first shown in frame was posted, in
+     * System.nanoTime terms, or 0 if frame is no longer the latest.
+     */
+    public long getInputNanos(DrawingCanvas.Frame frame) {
+        Shown s = shown;
+        return s.frame == frame ? s.inputNanos : 0;
+    }
+
+    /**
+     * Microseconds from posting commands to the frame showing them.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Runs whatever has already been posted, publishes it and stops the
+     * thread, waiting at most the given time.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        stopping = true;
+        LockSupport.unpark(thread);
+        thread.join(unit.toMillis(timeout));
+    }
+
+    private void render() {
+        long batchStart = 0;
+        while (true) {
+            Posted p = queue.poll();
+            if (p == null) {
+                publish();
+                if (stopping) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            if (batchSize == 0) {
+                batchStart = System.nanoTime();
+            }
+            try {
+                p.command.run(canvas);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace(System.err);
+            }
+            if (batchSize == batch.length) {
+                batch = Arrays.copyOf(batch, 2 * batch.length);
+            }
+            batch[batchSize++] = p.nanos;
+            // a steady stream of commands still gets frames
+            if (System.nanoTime() - batchStart >= frameNanos) {
+                publish();
+            }
+        }
+    }
+
+    private void publish() {
+        if (batchSize == 0) {
+            return;
+        }
+        if (!damage.isEmpty()) {
+            // commands run in the order posted, so the first is the oldest
+            shown = new Shown(canvas.frame(), batch[0]);
+            listener.framePublished(new Rectangle(damage));
+            damage.setBounds(0, 0, -1, -1);
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < batchSize; i++) {
+            latency.record((now - batch[i]) / 1000);
+        }
+        batchSize = 0;
+        if (Metrics.ENABLED) {
+            Metrics.INSTANCE.history(canvas.getHistorySize() + canvas.getRedoSize(),
+                    canvas.getHistoryBytes());
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package annotationtool;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Stroke;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only binary log of everything that changes a canvas's history:
+ * committed strokes with their packed points, clears, strokes erased,
+ * undo, redo and clearing the history. Records are gathered in a buffer and written
+ * through a FileChannel; a background thread writes out whatever has
+ * gathered and forces it to disk every sync interval, so one fsync covers
+ * all the records since the last. On startup the file is memory-mapped and
+ * replayed into the canvas, which is drawn once at the end.
+ * <p>
+ * Styles are written once, the first time a record uses them, and
+ * referred to by id after that. Only BasicStroke and Color can be recorded;
+ * other strokes and paints come back as the defaults. Clearing the history
+ * truncates the file, since nothing before it can be undone.
+ * <p>
+ * Records are appended from the canvas's thread and flushed from the sync
+ * thread, so the buffer is only touched while holding the journal's lock.
+ */
+public class SessionJournal implements DrawingCanvas.HistoryListener {
+
+    public static final long DEFAULT_SYNC_MILLIS = 500;
+
+    private static final int MAGIC = 0x414e4a31; // "ANJ1"
+    private static final int HEADER_BYTES = 4;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long CLOSE_SECONDS = 10; // for a sync under way to finish
+
+    static final byte STYLE = 1;
+    static final byte STROKE = 2;
+    static final byte CLEAR = 3;
+    static final byte UNDO = 4;
+    static final byte REDO = 5;
+    static final byte CLEAR_HISTORY = 6;
+    static final byte ERASE = 7;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ScheduledExecutorService syncer;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final Set<Integer> stylesWritten = new HashSet<Integer>();
+    private IOException failure; // set once writing has stopped for good
+
+    private SessionJournal(File file, FileChannel channel, long syncMillis) {
+        this.file = file;
+        this.channel = channel;
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "journal-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replays the journal in file, if there is one, into canvas and
+     * returns a journal appending to it that the canvas now records into.
+     * A record cut short by a crash is dropped from the end of the file. A
+     * new journal is only started in a file that is absent or empty; any
+     * other file that is not a journal is left alone and IOException thrown.
+     */
+    public static SessionJournal open(File file, DrawingCanvas canvas, long syncMillis)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long valid;
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).flip();
+                channel.write(header, 0);
+                valid = HEADER_BYTES;
+            } else {
+                // a mistyped path must not cost someone an unrelated file
+                valid = channel.size() >= HEADER_BYTES ? restore(channel, canvas) : 0;
+                if (valid == 0) {
+                    throw new IOException("not a session journal");
+                }
+                if (valid < channel.size()) {
+                    channel.truncate(valid);
+                }
+            }
+            channel.position(valid);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        SessionJournal journal = new SessionJournal(file, channel, syncMillis);
+        canvas.addHistoryListener(journal);
+        return journal;
+    }
+
+    /**
+     * Replays the journal in file into canvas, leaving the file as it is,
+     * and returns whether it was a journal.
+     */
+    public static boolean replay(File file, DrawingCanvas canvas) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return channel.size() >= HEADER_BYTES && restore(channel, canvas) > 0;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the journal and applies each whole record to canvas, returning
+     * the length of the records read, or 0 if this is not a journal.
+     */
+    private static long restore(FileChannel channel, DrawingCanvas canvas) throws IOException {
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (in.getInt() != MAGIC) {
+            return 0;
+        }
+        Map<Integer, Stroke> strokes = new HashMap<Integer, Stroke>();
+        Map<Integer, Paint> paints = new HashMap<Integer, Paint>();
+        float[] points = new float[256];
+        int valid = in.position();
+        canvas.beginRestore();
+        try {
+            while (in.hasRemaining()) {
+                byte type = in.get();
+                if (type == STYLE) {
+                    int id = in.getInt();
+                    strokes.put(id, readStroke(in));
+                    paints.put(id, new Color(in.getInt(), true));
+                } else if (type == STROKE) {
+                    int style = in.getInt();
+                    boolean smooth = in.get() != 0;
+                    int count = in.getInt();
+                    if (count < 0 || 8L * count > in.remaining()) {
+                        break;
+                    }
+                    if (points.length < 2 * count) {
+                        points = new float[Math.max(2 * count, 2 * points.length)];
+                    }
+                    in.asFloatBuffer().get(points, 0, 2 * count);
+                    in.position(in.position() + 8 * count);
+                    canvas.restoreShape(strokes.get(style), paints.get(style),
+                            points, count, smooth);
+                } else if (type == CLEAR) {
+                    canvas.clear(paints.get(in.getInt()));
+                } else if (type == UNDO) {
+                    canvas.undo();
+                } else if (type == REDO) {
+                    canvas.redo();
+                } else if (type == CLEAR_HISTORY) {
+                    canvas.clearHistory();
+                } else if (type == ERASE) {
+                    int[] positions = new int[in.getInt()];
+                    in.asIntBuffer().get(positions);
+                    in.position(in.position() + 4 * positions.length);
+                    canvas.restoreErase(positions);
+                } else {
+                    break;
+                }
+                valid = in.position();
+            }
+        } catch (BufferUnderflowException ex) {
+            // the last record was only partly written
+        } finally {
+            canvas.endRestore();
+        }
+        return valid;
+    }
+
+    /**
+     * Reads back the stroke of a style record, after its id; the paint
+     * follows as an ARGB int.
+     */
+    static Stroke readStroke(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        float width = in.getFloat();
+        int cap = in.get();
+        int join = in.get();
+        float miterLimit = in.getFloat();
+        int dashes = in.getInt();
+        float[] dash = null;
+        if (dashes > 0) {
+            dash = new float[dashes];
+            in.asFloatBuffer().get(dash);
+            in.position(in.position() + 4 * dashes);
+        }
+        float phase = in.getFloat();
+        return new BasicStroke(width, cap, join, miterLimit, dash, phase);
+    }
+
+    /**
+     * Records a committed stroke or clear.
+     */
+    @Override
+    public synchronized void shape(ShapeDef sd, StrokeStore store) {
+        if (failure != null) {
+            return;
+        }
+        writeStyle(sd.style, store);
+        if (sd.barrier) {
+            ensure(5);
+            buffer.put(CLEAR).putInt(sd.style);
+            return;
+        }
+        ensure(10 + 8 * sd.count);
+        buffer.put(STROKE).putInt(sd.style).put((byte) (sd.smooth ? 1 : 0)).putInt(sd.count);
+        buffer.asFloatBuffer().put(store.chunk(sd), sd.offset, 2 * sd.count);
+        buffer.position(buffer.position() + 8 * sd.count);
+    }
+
+    /**
+     * Records erasing the strokes at the given undo stack depths.
+     */
+    @Override
+    public synchronized void erase(int[] positions) {
+        if (failure != null) {
+            return;
+        }
+        ensure(5 + 4 * positions.length);
+        buffer.put(ERASE).putInt(positions.length);
+        buffer.asIntBuffer().put(positions);
+        buffer.position(buffer.position() + 4 * positions.length);
+    }
+
+    @Override
+    public synchronized void undo() {
+        if (failure != null) {
+            return;
+        }
+        ensure(1);
+        buffer.put(UNDO);
+    }
+
+    @Override
+    public synchronized void redo() {
+        if (failure != null) {
+            return;
+        }
+        ensure(1);
+        buffer.put(REDO);
+    }
+
+    /**
+     * Starts the journal again from an empty canvas.
+     */
+    @Override
+    public synchronized void clearHistory() {
+        if (failure != null) {
+            return;
+        }
+        buffer.clear();
+        stylesWritten.clear();
+        try {
+            channel.truncate(HEADER_BYTES);
+            channel.position(HEADER_BYTES);
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * Only committed strokes are recorded, so their live points are not.
+     */
+    @Override
+    public void strokeBegun(int style, StrokeStore store, float x, float y) {
+    }
+
+    @Override
+    public void strokeExtended(float x, float y) {
+    }
+
+    /**
+     * Writes out and forces to disk everything recorded so far.
+     */
+    void sync() {
+        synchronized (this) {
+            writeBuffer();
+        }
+        // forcing is the slow part and needs no lock, records keep coming
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            synchronized (this) {
+                failed(ex);
+            }
+        }
+    }
+
+    /**
+     * Syncs and closes the journal, once a sync already under way has
+     * finished; anything recorded after this is ignored.
+     */
+    public void close() throws IOException {
+        syncer.shutdown();
+        try {
+            // a force still running would otherwise race the channel closing
+            syncer.awaitTermination(CLOSE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        synchronized (this) {
+            if (failure == null) {
+                failure = new ClosedChannelException();
+            }
+        }
+        channel.close();
+    }
+
+    private void writeStyle(int style, StrokeStore store) {
+        if (!stylesWritten.add(style)) {
+            return;
+        }
+        ensure(styleBytes(style, store));
+        putStyle(buffer, style, store);
+    }
+
+    /**
+     * The size of the style's record.
+     */
+    static int styleBytes(int style, StrokeStore store) {
+        Stroke stroke = store.stroke(style);
+        float[] dash = stroke instanceof BasicStroke ? ((BasicStroke) stroke).getDashArray() : null;
+        return 28 + 4 * (dash == null ? 0 : dash.length);
+    }
+
+    /**
+     * Writes a record of the style: its stroke, if a BasicStroke (any other
+     * is written as the default BasicStroke), and its paint, if a Color
+     * (any other is written as black). A broadcast sends the same record.
+     */
+    static void putStyle(ByteBuffer buffer, int style, StrokeStore store) {
+        Stroke stroke = store.stroke(style);
+        Paint paint = store.paint(style);
+        BasicStroke bs = stroke instanceof BasicStroke ? (BasicStroke) stroke
+                : stroke == null ? null : new BasicStroke();
+        float[] dash = bs == null ? null : bs.getDashArray();
+        int dashes = dash == null ? 0 : dash.length;
+        buffer.put(STYLE).putInt(style);
+        if (bs == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1).putFloat(bs.getLineWidth())
+                    .put((byte) bs.getEndCap()).put((byte) bs.getLineJoin())
+                    .putFloat(bs.getMiterLimit()).putInt(dashes);
+            for (int i = 0; i < dashes; i++) {
+                buffer.putFloat(dash[i]);
+            }
+            buffer.putFloat(bs.getDashPhase());
+        }
+        buffer.putInt(paint instanceof Color ? ((Color) paint).getRGB() : Color.BLACK.getRGB());
+    }
+
+    /**
+     * Makes room in the buffer for a record of the given size.
+     */
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            writeBuffer();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(Math.max(bytes, 2 * buffer.capacity()));
+            }
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while (failure == null && buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+        buffer.clear();
+    }
+
+    private void failed(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+            System.err.println("Journal " + file + " stopped: " + ex.getMessage());
+        }
+    }
+}
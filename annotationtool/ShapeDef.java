@@ -0,0 +1,53 @@
+package annotationtool;
+
+import java.awt.Rectangle;
+
+/**
+ * One entry in the drawing history. The points live in a StrokeStore, as
+ * count x, y pairs starting at offset in one of its chunks; the stroke and
+ * paint are the store's style. A barrier has no points and fills the whole
+ * canvas with its paint. An erase entry has no points either; it hides the
+ * strokes it erased for as long as it is on the undo stack.
+ */
+class ShapeDef {
+
+    final int style;
+    final int chunk;
+    final int offset;
+    final int count;
+    // draw as curves through the midpoints rather than as a polyline
+    final boolean smooth;
+    // overwrites the whole canvas, so nothing beneath it needs replaying
+    final boolean barrier;
+    // the strokes this entry erases, null unless it is an erase entry
+    final ShapeDef[] erases;
+
+    // how many erase entries on the undo stack hide it, counting an erase
+    // in progress; an entry undone and the stroke erased again makes two
+    int erasures;
+    // pixels the entry can touch, within the canvas; set when first needed
+    Rectangle bounds;
+
+    ShapeDef(int style, int chunk, int offset, int count, boolean smooth, boolean barrier) {
+        this.style = style;
+        this.chunk = chunk;
+        this.offset = offset;
+        this.count = count;
+        this.smooth = smooth;
+        this.barrier = barrier;
+        this.erases = null;
+    }
+
+    /**
+     * An erase entry for the given strokes.
+     */
+    ShapeDef(ShapeDef[] erases) {
+        this.style = -1;
+        this.chunk = 0;
+        this.offset = 0;
+        this.count = 0;
+        this.smooth = false;
+        this.barrier = false;
+        this.erases = erases;
+    }
+}
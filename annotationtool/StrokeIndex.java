@@ -0,0 +1,111 @@
+package annotationtool;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A uniform grid over the canvas listing, for each cell, the strokes whose
+ * bounds overlap it, so the strokes near a point can be found without
+ * looking at the rest of the history. Holds exactly the strokes that can
+ * currently be seen: those above the topmost clear and not erased.
+ */
+class StrokeIndex {
+
+    static final int CELL_SIZE = 64;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final List<List<ShapeDef>> cells;
+    private int size;
+
+    StrokeIndex(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+        int rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        cells = new ArrayList<List<ShapeDef>>(columns * rows);
+        for (int i = 0; i < columns * rows; i++) {
+            cells.add(null);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(ShapeDef sd) {
+        Rectangle r = sd.bounds.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / CELL_SIZE; row <= (r.y + r.height - 1) / CELL_SIZE; row++) {
+            for (int col = r.x / CELL_SIZE; col <= (r.x + r.width - 1) / CELL_SIZE; col++) {
+                List<ShapeDef> cell = cells.get(row * columns + col);
+                if (cell == null) {
+                    cell = new ArrayList<ShapeDef>(4);
+                    cells.set(row * columns + col, cell);
+                }
+                cell.add(sd);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Takes sd out of the index, if it is there.
+     */
+    void remove(ShapeDef sd) {
+        Rectangle r = sd.bounds.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return;
+        }
+        boolean removed = false;
+        for (int row = r.y / CELL_SIZE; row <= (r.y + r.height - 1) / CELL_SIZE; row++) {
+            for (int col = r.x / CELL_SIZE; col <= (r.x + r.width - 1) / CELL_SIZE; col++) {
+                List<ShapeDef> cell = cells.get(row * columns + col);
+                if (cell != null) {
+                    removed |= cell.remove(sd);
+                }
+            }
+        }
+        if (removed) {
+            size--;
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < cells.size(); i++) {
+            cells.set(i, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * The strokes whose bounds overlap area, each once.
+     */
+    Set<ShapeDef> query(Rectangle area) {
+        Set<ShapeDef> found = new LinkedHashSet<ShapeDef>();
+        Rectangle r = area.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return found;
+        }
+        for (int row = r.y / CELL_SIZE; row <= (r.y + r.height - 1) / CELL_SIZE; row++) {
+            for (int col = r.x / CELL_SIZE; col <= (r.x + r.width - 1) / CELL_SIZE; col++) {
+                List<ShapeDef> cell = cells.get(row * columns + col);
+                if (cell == null) {
+                    continue;
+                }
+                for (ShapeDef sd : cell) {
+                    if (sd.bounds.intersects(area)) {
+                        found.add(sd);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+}
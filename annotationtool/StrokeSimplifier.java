@@ -0,0 +1,184 @@
+package annotationtool;
+
+import java.util.Arrays;
+
+/**
+ * Thins out the points of a freehand stroke as they are captured and again
+ * when it is committed, keeping the result within a tolerance of the input.
+ * <p>
+ * While capturing, a point that has barely moved is held back, and the
+ * newest kept point is replaced by the incoming one whenever every point
+ * skipped since the previous kept point stays within a quarter of the
+ * tolerance of the straightened segment. On finish, Ramer-Douglas-Peucker
+ * with the rest of the tolerance removes what the online pass missed. The
+ * result can be marked to be drawn as quadratic curves through the midpoints
+ * of the remaining segments rather than as a polyline.
+ */
+class StrokeSimplifier {
+
+    static final float DEFAULT_TOLERANCE = 1.0f;
+
+    // most skipped points checked before a kept point is fixed in place
+    private static final int WINDOW = 32;
+
+    private final float onlineTolerance;
+    private final float finalTolerance;
+    private final boolean smooth;
+
+    private float[] points = new float[128];
+    private int count; // number of kept points; the newest may still move
+    private final float[] skipped = new float[2 * WINDOW];
+    private int skippedCount;
+    private boolean hasTail;
+    private float tailX, tailY;
+
+    StrokeSimplifier(float tolerance, boolean smooth) {
+        // the cheap capture pass only takes out the obvious redundancy and
+        // leaves most of the error budget to the global pass on finish
+        this.onlineTolerance = Math.max(0, tolerance) / 4;
+        this.finalTolerance = Math.max(0, tolerance) - onlineTolerance;
+        this.smooth = smooth;
+    }
+
+    void begin(float x, float y) {
+        count = 0;
+        skippedCount = 0;
+        hasTail = false;
+        append(x, y);
+    }
+
+    void add(float x, float y) {
+        int last = 2 * (count - 1);
+        float bx = points[last], by = points[last + 1];
+        if (distanceSq(x, y, bx, by) <= onlineTolerance * onlineTolerance) {
+            hasTail = true;
+            tailX = x;
+            tailY = y;
+            return;
+        }
+        hasTail = false;
+        if (count >= 2 && skippedCount < WINDOW) {
+            float ax = points[last - 2], ay = points[last - 1];
+            boolean straight = segmentDistance(bx, by, ax, ay, x, y) <= onlineTolerance;
+            for (int i = 0; straight && i < skippedCount; i++) {
+                straight = segmentDistance(skipped[2 * i], skipped[2 * i + 1],
+                        ax, ay, x, y) <= onlineTolerance;
+            }
+            if (straight) {
+                skipped[2 * skippedCount] = bx;
+                skipped[2 * skippedCount + 1] = by;
+                skippedCount++;
+                points[last] = x;
+                points[last + 1] = y;
+                return;
+            }
+        }
+        skippedCount = 0;
+        append(x, y);
+    }
+
+    /**
+     * Ends the stroke, leaving its simplified points at the start of
+     * points(), and returns how many there are.
+     */
+    int finish() {
+        if (hasTail) {
+            append(tailX, tailY);
+            hasTail = false;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        if (finalTolerance > 0) {
+            douglasPeucker(keep);
+        } else {
+            Arrays.fill(keep, true);
+        }
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                points[2 * n] = points[2 * i];
+                points[2 * n + 1] = points[2 * i + 1];
+                n++;
+            }
+        }
+        count = n;
+        return count;
+    }
+
+    /**
+     * The kept points as x, y pairs.
+     */
+    float[] points() {
+        return points;
+    }
+
+    /**
+     * Whether the points should be drawn as curves through the midpoints of
+     * the segments between them, rather than as a polyline.
+     */
+    boolean isSmooth() {
+        return smooth;
+    }
+
+    private void append(float x, float y) {
+        if (2 * count + 2 > points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
+        }
+        points[2 * count] = x;
+        points[2 * count + 1] = y;
+        count++;
+    }
+
+    /**
+     * Marks in keep the points Ramer-Douglas-Peucker retains, working from
+     * an explicit stack so long strokes cannot overflow the call stack.
+     */
+    private void douglasPeucker(boolean[] keep) {
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            float ax = points[2 * start], ay = points[2 * start + 1];
+            float bx = points[2 * end], by = points[2 * end + 1];
+            float worst = finalTolerance;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                float d = segmentDistance(points[2 * i], points[2 * i + 1], ax, ay, bx, by);
+                if (d > worst) {
+                    worst = d;
+                    index = i;
+                }
+            }
+            if (index >= 0) {
+                keep[index] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = start;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = end;
+            }
+        }
+    }
+
+    private static float distanceSq(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2, dy = y1 - y2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Distance from (px, py) to the segment from (ax, ay) to (bx, by).
+     */
+    static float segmentDistance(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax, dy = by - ay;
+        float lengthSq = dx * dx + dy * dy;
+        float t = lengthSq == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        return (float) Math.sqrt(distanceSq(px, py, ax + t * dx, ay + t * dy));
+    }
+}
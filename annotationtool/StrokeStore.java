@@ -0,0 +1,528 @@
+package annotationtool;
+
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packed storage for the points of committed strokes. Coordinates live in
+ * large shared float chunks and each stroke is just a range within one of
+ * them; strokes and paints are interned into small integer style ids. Paths
+ * are rendered by streaming straight out of the chunks.
+ * <p>
+ * A chunk never changes once a newer one has been started, and the heap
+ * its points take is bounded in two steps. When the float chunks pass the
+ * memory ceiling the least recently used are packed, as deltas between
+ * quarter-pixel coordinates in a variable number of bytes, which takes
+ * whole-pixel input down to a byte or two a coordinate. When the packed
+ * chunks pass their own ceiling the least recently used are spilled to a
+ * temporary file. Asking for a chunk that is packed or spilled brings it
+ * back; the strokes drawn most recently, which undo reaches first, stay
+ * in their floats. Coordinates that are not a quarter-pixel multiple are
+ * packed as they are, so nothing is ever rounded.
+ * <p>
+ * Replay reads chunks from several threads at once, so they are only
+ * handed out under the store's lock.
+ */
+class StrokeStore {
+
+    static final int CHUNK_FLOATS = 64 * 1024;
+    static final long DEFAULT_MEMORY_CEILING = 32L * 1024 * 1024;
+    static final long DEFAULT_PACKED_CEILING = 16L * 1024 * 1024;
+
+    // coordinates are packed in these fractions of a pixel
+    private static final float QUANTUM = 4;
+
+    /**
+     * The points of one chunk in whichever forms it is held: floats while
+     * in use, bytes once packed and an offset in the spill file once
+     * spilled. Packing and spilling are each done only once, as the points
+     * never change; a chunk brought back keeps its packed form until that
+     * too is evicted.
+     */
+    private static class Chunk {
+
+        float[] floats;
+        int length; // floats in use
+        byte[] packed;
+        int packedLength;
+        long spilledAt = -1;
+        long lastUsed;
+
+        Chunk(int capacity) {
+            floats = new float[capacity];
+        }
+    }
+
+    private final long memoryCeiling;
+    private final long packedCeiling;
+
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private Chunk current;
+    private long floatBytes;
+    private long packedBytes;
+    private long uses;
+
+    private File spillFile;
+    private RandomAccessFile spill;
+    private long spilledBytes;
+    private boolean spillFailed; // keep everything in memory from then on
+
+    private final List<Stroke> strokes = new ArrayList<Stroke>();
+    private final List<Paint> paints = new ArrayList<Paint>();
+    private final Map<List<Object>, Integer> styleIds = new HashMap<List<Object>, Integer>();
+
+    StrokeStore(long memoryCeiling, long packedCeiling) {
+        this.memoryCeiling = memoryCeiling;
+        this.packedCeiling = packedCeiling;
+    }
+
+    /**
+     * The id for drawing with this stroke and paint, shared by every shape
+     * that uses the same (equal) pair.
+     */
+    int style(Stroke stroke, Paint paint) {
+        List<Object> key = Arrays.<Object>asList(stroke, paint);
+        Integer id = styleIds.get(key);
+        if (id == null) {
+            id = strokes.size();
+            strokes.add(stroke);
+            paints.add(paint);
+            styleIds.put(key, id);
+        }
+        return id;
+    }
+
+    Stroke stroke(int style) {
+        return strokes.get(style);
+    }
+
+    Paint paint(int style) {
+        return paints.get(style);
+    }
+
+    /**
+     * Copies count points (x, y pairs) from points into the store and
+     * returns the stroke that refers to them.
+     */
+    synchronized ShapeDef add(int style, float[] points, int count, boolean smooth) {
+        int floats = 2 * count;
+        if (current == null || current.length + floats > current.floats.length) {
+            current = new Chunk(Math.max(CHUNK_FLOATS, floats));
+            chunks.add(current);
+            floatBytes += 4L * current.floats.length;
+            trim(current);
+        }
+        System.arraycopy(points, 0, current.floats, current.length, floats);
+        ShapeDef sd = new ShapeDef(style, chunks.size() - 1, current.length, count, smooth, false);
+        current.length += floats;
+        current.lastUsed = ++uses;
+        return sd;
+    }
+
+    /**
+     * Heap held by the points, float chunks including space not yet used
+     * and packed chunks; spilled chunks take none.
+     */
+    synchronized long getBytes() {
+        return floatBytes + packedBytes;
+    }
+
+    /**
+     * Bytes of packed points written out to the spill file.
+     */
+    synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Drops every stroke; shapes handed out earlier must not be used again.
+     */
+    synchronized void clear() {
+        chunks.clear();
+        current = null;
+        floatBytes = 0;
+        packedBytes = 0;
+        spilledBytes = 0;
+        if (spill != null) {
+            try {
+                spill.setLength(0);
+            } catch (IOException ex) {
+                closeSpill();
+            }
+        }
+    }
+
+    /**
+     * The chunk holding the stroke's points, from index sd.offset on,
+     * unpacked or read back first if need be.
+     */
+    synchronized float[] chunk(ShapeDef sd) {
+        Chunk c = chunks.get(sd.chunk);
+        c.lastUsed = ++uses;
+        float[] floats = c.floats;
+        if (floats == null) {
+            if (c.packed == null) {
+                c.packed = readSpilled(c);
+                packedBytes += c.packed.length;
+            }
+            floats = new float[c.length];
+            unpack(c.packed, 0, floats, floats.length);
+            c.floats = floats;
+            floatBytes += 4L * floats.length;
+            trim(c);
+        }
+        return floats;
+    }
+
+    /**
+     * A Shape reading the stroke's points from the store.
+     */
+    Shape shape(ShapeDef sd) {
+        return new PackedPath(chunk(sd), sd.offset, sd.count, sd.smooth);
+    }
+
+    /**
+     * Packs, then spills, the least recently used chunks until both kinds
+     * are back under their ceilings. The chunk being added to, and the one
+     * just asked for, stay as they are.
+     */
+    private void trim(Chunk keep) {
+        while (floatBytes > memoryCeiling) {
+            Chunk c = leastRecentlyUsed(true, keep);
+            if (c == null) {
+                break;
+            }
+            if (c.packed == null && c.spilledAt < 0) {
+                c.packed = pack(c.floats, 0, c.length);
+                c.packedLength = c.packed.length;
+                packedBytes += c.packed.length;
+            }
+            floatBytes -= 4L * c.floats.length;
+            c.floats = null;
+        }
+        while (packedBytes > packedCeiling && !spillFailed) {
+            Chunk c = leastRecentlyUsed(false, keep);
+            if (c == null || (c.spilledAt < 0 && !writeSpilled(c))) {
+                break;
+            }
+            packedBytes -= c.packed.length;
+            c.packed = null;
+        }
+    }
+
+    private Chunk leastRecentlyUsed(boolean withFloats, Chunk keep) {
+        Chunk lru = null;
+        for (Chunk c : chunks) {
+            if (c != current && c != keep && (withFloats ? c.floats : c.packed) != null
+                    && (lru == null || c.lastUsed < lru.lastUsed)) {
+                lru = c;
+            }
+        }
+        return lru;
+    }
+
+    private boolean writeSpilled(Chunk c) {
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("annotationtool-history", ".bin");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            spill.seek(spilledBytes);
+            spill.write(c.packed, 0, c.packedLength);
+            c.spilledAt = spilledBytes;
+            spilledBytes += c.packedLength;
+            return true;
+        } catch (IOException ex) {
+            System.err.println("History kept in memory, spill failed: " + ex.getMessage());
+            spillFailed = true;
+            closeSpill();
+            return false;
+        }
+    }
+
+    private byte[] readSpilled(Chunk c) {
+        byte[] packed = new byte[c.packedLength];
+        try {
+            spill.seek(c.spilledAt);
+            spill.readFully(packed);
+        } catch (IOException ex) {
+            throw new IllegalStateException("History could not be read back from "
+                    + spillFile, ex);
+        }
+        return packed;
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ex) {
+                // nothing more to lose
+            }
+            spill = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Encodes length floats from offset on. Each coordinate that is a whole
+     * number of quanta becomes its difference from the previous one on
+     * the same axis, zigzagged so small negatives stay small, shifted left
+     * one and written seven bits a byte, low bits first, the top bit
+     * marking that more follow. Any other value is written as a 1 followed
+     * by its four float bytes.
+     */
+    static byte[] pack(float[] floats, int offset, int length) {
+        byte[] out = new byte[length + 64];
+        int n = 0;
+        long[] previous = new long[2];
+        for (int i = 0; i < length; i++) {
+            if (out.length - n < 10) {
+                out = Arrays.copyOf(out, 2 * out.length);
+            }
+            float v = floats[offset + i];
+            float q = v * QUANTUM;
+            if (q != (float) Math.rint(q) || Math.abs(q) > Integer.MAX_VALUE
+                    || Float.floatToRawIntBits(v) == Integer.MIN_VALUE) {
+                // fractions, infinities, NaN and -0 go verbatim
+                int bits = Float.floatToRawIntBits(v);
+                out[n++] = 1;
+                out[n++] = (byte) bits;
+                out[n++] = (byte) (bits >> 8);
+                out[n++] = (byte) (bits >> 16);
+                out[n++] = (byte) (bits >> 24);
+                continue;
+            }
+            long quanta = (long) q;
+            long delta = quanta - previous[i & 1];
+            previous[i & 1] = quanta;
+            long token = ((delta << 1) ^ (delta >> 63)) << 1;
+            while ((token & ~0x7fL) != 0) {
+                out[n++] = (byte) (token | 0x80);
+                token >>>= 7;
+            }
+            out[n++] = (byte) token;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Decodes length floats that pack wrote from packed[from] on into
+     * floats, and returns the index in packed just after them.
+     */
+    static int unpack(byte[] packed, int from, float[] floats, int length) {
+        int n = from;
+        long[] previous = new long[2];
+        for (int i = 0; i < length; i++) {
+            long token = 0;
+            int b = packed[n++];
+            if (b == 1) {
+                floats[i] = Float.intBitsToFloat((packed[n] & 0xff)
+                        | (packed[n + 1] & 0xff) << 8
+                        | (packed[n + 2] & 0xff) << 16
+                        | (packed[n + 3] & 0xff) << 24);
+                n += 4;
+                continue;
+            }
+            for (int shift = 0; ; shift += 7) {
+                token |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                b = packed[n++];
+            }
+            long zigzag = token >>> 1;
+            previous[i & 1] += (zigzag >>> 1) ^ -(zigzag & 1);
+            floats[i] = previous[i & 1] / QUANTUM;
+        }
+        return n;
+    }
+
+    /**
+     * A polyline, or midpoint-smoothed quadratic curve, over a range of a
+     * float chunk. Only path iteration and bounds are computed directly;
+     * the hit-testing methods go through a Path2D built on demand.
+     */
+    static class PackedPath implements Shape {
+
+        private final float[] data;
+        private final int offset;
+        private final int count;
+        private final boolean smooth;
+
+        PackedPath(float[] data, int offset, int count, boolean smooth) {
+            this.data = data;
+            this.offset = offset;
+            this.count = count;
+            this.smooth = smooth && count >= 3;
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at) {
+            return new Iterator(at);
+        }
+
+        @Override
+        public PathIterator getPathIterator(AffineTransform at, double flatness) {
+            return toPath2D().getPathIterator(at, flatness);
+        }
+
+        @Override
+        public Rectangle getBounds() {
+            return getBounds2D().getBounds();
+        }
+
+        @Override
+        public Rectangle2D getBounds2D() {
+            if (count == 0) {
+                return new Rectangle2D.Float();
+            }
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+            for (int i = offset, end = offset + 2 * count; i < end; i += 2) {
+                minX = Math.min(minX, data[i]);
+                maxX = Math.max(maxX, data[i]);
+                minY = Math.min(minY, data[i + 1]);
+                maxY = Math.max(maxY, data[i + 1]);
+            }
+            return new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+        }
+
+        @Override
+        public boolean contains(double x, double y) {
+            return toPath2D().contains(x, y);
+        }
+
+        @Override
+        public boolean contains(Point2D p) {
+            return toPath2D().contains(p);
+        }
+
+        @Override
+        public boolean intersects(double x, double y, double w, double h) {
+            return toPath2D().intersects(x, y, w, h);
+        }
+
+        @Override
+        public boolean intersects(Rectangle2D r) {
+            return toPath2D().intersects(r);
+        }
+
+        @Override
+        public boolean contains(double x, double y, double w, double h) {
+            return toPath2D().contains(x, y, w, h);
+        }
+
+        @Override
+        public boolean contains(Rectangle2D r) {
+            return toPath2D().contains(r);
+        }
+
+        Path2D.Float toPath2D() {
+            Path2D.Float path = new Path2D.Float();
+            path.append(getPathIterator(null), false);
+            return path;
+        }
+
+        /**
+         * Walks the points as moveTo, lineTo...; or for a smoothed path
+         * moveTo, lineTo the first midpoint, quadTo through each inner point
+         * to the next midpoint, and lineTo the last point.
+         */
+        private class Iterator implements PathIterator {
+
+            private final AffineTransform at;
+            private final int segments;
+            private int index;
+
+            Iterator(AffineTransform at) {
+                this.at = at;
+                this.segments = count == 0 ? 0 : smooth ? count + 1 : count;
+            }
+
+            @Override
+            public int getWindingRule() {
+                return WIND_NON_ZERO;
+            }
+
+            @Override
+            public boolean isDone() {
+                return index >= segments;
+            }
+
+            @Override
+            public void next() {
+                index++;
+            }
+
+            @Override
+            public int currentSegment(float[] coords) {
+                int type = fill(coords);
+                if (at != null) {
+                    at.transform(coords, 0, coords, 0, type == SEG_QUADTO ? 2 : 1);
+                }
+                return type;
+            }
+
+            @Override
+            public int currentSegment(double[] coords) {
+                float[] f = new float[4];
+                int type = currentSegment(f);
+                for (int i = 0; i < 4; i++) {
+                    coords[i] = f[i];
+                }
+                return type;
+            }
+
+            private int fill(float[] coords) {
+                int p = offset + 2 * index;
+                if (index == 0) {
+                    coords[0] = data[offset];
+                    coords[1] = data[offset + 1];
+                    return SEG_MOVETO;
+                }
+                if (!smooth) {
+                    coords[0] = data[p];
+                    coords[1] = data[p + 1];
+                    return SEG_LINETO;
+                }
+                if (index == 1) {
+                    coords[0] = (data[offset] + data[offset + 2]) / 2;
+                    coords[1] = (data[offset + 1] + data[offset + 3]) / 2;
+                    return SEG_LINETO;
+                }
+                if (index == count) {
+                    coords[0] = data[offset + 2 * count - 2];
+                    coords[1] = data[offset + 2 * count - 1];
+                    return SEG_LINETO;
+                }
+                // control point is point index-1, end is its midpoint with index
+                int c = p - 2;
+                coords[0] = data[c];
+                coords[1] = data[c + 1];
+                coords[2] = (data[c] + data[c + 2]) / 2;
+                coords[3] = (data[c + 1] + data[c + 3]) / 2;
+                return SEG_QUADTO;
+            }
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package annotationtool;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ARGB raster split into fixed-size tiles whose pixels are only
+ * allocated once something is drawn into them. A tile that is entirely one
+ * colour, as after a clear, is held as just that colour; a transparent tile
+ * holds nothing at all. Drawing, painting and reading visit only the tiles
+ * an area overlaps, and tile pixels are shared copy-on-write between an
+ * image and its snapshots.
+ */
+public class TiledImage {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final int EMPTY = 0;
+    private static final int SOLID = 1;
+    private static final int PIXELS = 2;
+
+    private static class Tile {
+
+        int state = EMPTY;
+        Color color;
+        BufferedImage image;
+        boolean shared; // image is also referenced by another TiledImage
+
+        void set(Tile other) {
+            state = other.state;
+            color = other.color;
+            image = other.image;
+            shared = image != null;
+            if (shared) {
+                other.shared = true;
+            }
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final Tile[] tiles;
+
+    public TiledImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Tile[columns * rows];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new Tile();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Bytes of pixel storage held by tiles, counting shared tiles in full.
+     */
+    public long getPixelBytes() {
+        long bytes = 0;
+        for (Tile t : tiles) {
+            if (t.state == PIXELS) {
+                bytes += 4L * t.image.getWidth() * t.image.getHeight();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Replaces the area with paint. Tiles the area covers completely and
+     * the paint is a plain colour are reset to that colour without touching
+     * any pixels.
+     */
+    void fill(Paint paint, Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Tile t = tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                Rectangle part = tb.intersection(r);
+                if (paint instanceof Color && part.equals(tb)) {
+                    setColor(t, (Color) paint);
+                } else if (t.state == PIXELS || !paint.equals(colorOf(t))) {
+                    Graphics2D g = graphics(t, col, row);
+                    g.setPaint(paint);
+                    g.fill(part);
+                    g.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes every tile the area touches transparent, including the parts
+     * of them outside the area, and releases their pixels.
+     */
+    void reset(Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                setColor(tiles[row * columns + col], DrawingCanvas.CLEAR_PAINT);
+            }
+        }
+    }
+
+    /**
+     * Draws shape with stroke and paint into the area, replacing rather
+     * than blending the pixels underneath (AlphaComposite.Src). Only tiles
+     * inside area are touched, so area should be the stroked bounds of the
+     * shape or a part of them.
+     * <p>
+     * Lines one pixel wide or less take a path through Java2D whose pixels
+     * shift with the clip, so they are drawn clipped to the whole tile and
+     * only the area copied in, leaving a part redrawn the same as the rest.
+     */
+    void draw(Shape shape, Stroke stroke, Paint paint, Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        boolean thin = stroke instanceof BasicStroke
+                && ((BasicStroke) stroke).getLineWidth() <= 1;
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Tile t = tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                if (thin && !r.contains(tb)) {
+                    drawThin(t, tb, r.intersection(tb), shape, stroke, paint);
+                    continue;
+                }
+                Graphics2D g = graphics(t, col, row);
+                g.clip(r);
+                g.setPaint(paint);
+                g.setStroke(stroke);
+                g.draw(shape);
+                g.dispose();
+            }
+        }
+    }
+
+    private void drawThin(Tile t, Rectangle tb, Rectangle part, Shape shape, Stroke stroke,
+            Paint paint) {
+        WritableRaster pixels = pixels(t, tb).getRaster();
+        BufferedImage whole = new BufferedImage(tb.width, tb.height,
+                BufferedImage.TYPE_INT_ARGB);
+        whole.setData(pixels);
+        Graphics2D g = whole.createGraphics();
+        g.translate(-tb.x, -tb.y);
+        g.clip(tb);
+        g.setComposite(AlphaComposite.Src);
+        g.setPaint(paint);
+        g.setStroke(stroke);
+        g.draw(shape);
+        g.dispose();
+        int x = part.x - tb.x, y = part.y - tb.y;
+        pixels.setRect(x, y, whole.getRaster().createChild(x, y, part.width, part.height,
+                0, 0, null));
+    }
+
+    /**
+     * Sets the pixels of mask that lie in area to color, as drawing the
+     * stroke the mask was taken from would with AlphaComposite.Src.
+     */
+    void fill(InkMask mask, Color color, Rectangle area) {
+        Rectangle r = area.intersection(mask.bounds).intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        int[] line = new int[TILE_SIZE];
+        Arrays.fill(line, color.getRGB());
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Rectangle tb = tileBounds(col, row);
+                Rectangle part = tb.intersection(r);
+                WritableRaster raster = null;
+                for (int y = part.y; y < part.y + part.height; y++) {
+                    int i = y - mask.bounds.y;
+                    for (int k = mask.rowStart[i]; k < mask.rowStart[i + 1]; k += 2) {
+                        if (mask.runs[k] >= part.x + part.width) {
+                            break;
+                        }
+                        int from = Math.max(mask.runs[k], part.x);
+                        int to = Math.min(mask.runs[k + 1], part.x + part.width);
+                        if (from >= to) {
+                            continue;
+                        }
+                        if (raster == null) {
+                            raster = pixels(tiles[row * columns + col], tb).getRaster();
+                        }
+                        raster.setDataElements(from - tb.x, y - tb.y, to - from, 1, line);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The area split at tile edges, one rectangle per tile it overlaps.
+     */
+    List<Rectangle> tileAreas(Rectangle area) {
+        List<Rectangle> parts = new ArrayList<Rectangle>();
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return parts;
+        }
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                parts.add(tileBounds(col, row).intersection(r));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Draws the area of the image into the same area of g, overwriting it,
+     * transparent tiles included.
+     */
+    void paint(Graphics2D g, Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        g.setComposite(AlphaComposite.Src);
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Tile t = tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                Rectangle part = tb.intersection(r);
+                if (t.state == PIXELS) {
+                    int sx = part.x - tb.x, sy = part.y - tb.y;
+                    g.drawImage(t.image,
+                            part.x, part.y, part.x + part.width, part.y + part.height,
+                            sx, sy, sx + part.width, sy + part.height, null);
+                } else {
+                    g.setPaint(colorOf(t));
+                    g.fillRect(part.x, part.y, part.width, part.height);
+                }
+            }
+        }
+    }
+
+    /**
+     * An image that shares this one's current tiles. Neither sees later
+     * changes to the other; a shared tile is copied by whichever side next
+     * draws into it.
+     */
+    TiledImage snapshot() {
+        TiledImage copy = new TiledImage(width, height);
+        for (int i = 0; i < tiles.length; i++) {
+            copy.tiles[i].set(tiles[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * Replaces the area with the same area of source, which must be the
+     * same size. Tiles inside the area are shared rather than copied.
+     */
+    void copyFrom(TiledImage source, Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Tile t = tiles[row * columns + col];
+                Tile from = source.tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                Rectangle part = tb.intersection(r);
+                if (part.equals(tb)) {
+                    t.set(from);
+                } else if (from.state != PIXELS) {
+                    fill(colorOf(from), part);
+                } else {
+                    Graphics2D g = graphics(t, col, row);
+                    int sx = part.x - tb.x, sy = part.y - tb.y;
+                    g.drawImage(from.image,
+                            part.x, part.y, part.x + part.width, part.y + part.height,
+                            sx, sy, sx + part.width, sy + part.height, null);
+                    g.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * The smallest rectangle holding every pixel that differs from other,
+     * which must be the same size; empty if none do. Tiles still sharing
+     * their pixels with other, or both the same colour, are passed over
+     * without reading them, so only tiles drawn into since other was taken
+     * are compared.
+     */
+    public Rectangle changedSince(TiledImage other) {
+        Rectangle changed = new Rectangle(0, 0, -1, -1);
+        int[] line = new int[TILE_SIZE], otherLine = new int[TILE_SIZE];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                Tile t = tiles[row * columns + col];
+                Tile o = other.tiles[row * columns + col];
+                if (t.state == o.state && (t.state == EMPTY || t.image == o.image
+                        && (t.state == PIXELS || t.color.equals(o.color)))) {
+                    continue;
+                }
+                Rectangle tb = tileBounds(col, row);
+                for (int y = 0; y < tb.height; y++) {
+                    line = tileRow(t, 0, y, tb.width, line);
+                    otherLine = tileRow(o, 0, y, tb.width, otherLine);
+                    int first = 0;
+                    while (first < tb.width && line[first] == otherLine[first]) {
+                        first++;
+                    }
+                    if (first == tb.width) {
+                        continue;
+                    }
+                    int last = tb.width - 1;
+                    while (line[last] == otherLine[last]) {
+                        last--;
+                    }
+                    changed.add(new Rectangle(tb.x + first, tb.y + y, last - first + 1, 1));
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Whether every tile the area touches is transparent.
+     */
+    boolean isClear(Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return true;
+        }
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                if (tiles[row * columns + col].state != EMPTY) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lays the area of layer, which must be the same size, over the same
+     * area of this image (SrcOver). The arithmetic is done here on
+     * non-premultiplied values, so ink laid over a transparent pixel keeps
+     * its value exactly, as it does when a whole tile over a transparent
+     * one is shared rather than drawn. Transparent tiles of layer are
+     * skipped.
+     */
+    void blend(TiledImage layer, Rectangle area) {
+        Rectangle r = area.intersection(getBounds());
+        if (r.isEmpty()) {
+            return;
+        }
+        int[] line = new int[TILE_SIZE], over = new int[TILE_SIZE];
+        for (int row = r.y / TILE_SIZE; row <= (r.y + r.height - 1) / TILE_SIZE; row++) {
+            for (int col = r.x / TILE_SIZE; col <= (r.x + r.width - 1) / TILE_SIZE; col++) {
+                Tile t = tiles[row * columns + col];
+                Tile from = layer.tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                Rectangle part = tb.intersection(r);
+                if (from.state == EMPTY) {
+                    continue;
+                }
+                if (t.state == EMPTY && part.equals(tb)) {
+                    t.set(from);
+                    continue;
+                }
+                if (from.state == SOLID && from.color.getAlpha() == 255) {
+                    fill(from.color, part);
+                    continue;
+                }
+                WritableRaster raster = pixels(t, tb).getRaster();
+                int x = part.x - tb.x;
+                for (int y = part.y - tb.y; y < part.y - tb.y + part.height; y++) {
+                    over = tileRow(from, x, y, part.width, over);
+                    line = (int[]) raster.getDataElements(x, y, part.width, 1, line);
+                    for (int i = 0; i < part.width; i++) {
+                        line[i] = over(over[i], line[i]);
+                    }
+                    raster.setDataElements(x, y, part.width, 1, line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Non-premultiplied ARGB src composited over dst.
+     */
+    private static int over(int src, int dst) {
+        int sa = src >>> 24;
+        int da = dst >>> 24;
+        if (sa == 255 || da == 0) {
+            return src;
+        }
+        if (sa == 0) {
+            return dst;
+        }
+        // alpha and colour weights scaled by 255
+        int ws = sa * 255;
+        int wd = da * (255 - sa);
+        int a = ws + wd;
+        int argb = (a + 127) / 255 << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int c = ((src >> shift & 0xff) * ws + (dst >> shift & 0xff) * wd + a / 2) / a;
+            argb |= c << shift;
+        }
+        return argb;
+    }
+
+    /**
+     * Reads w pixels from (x, y) of a tile as non-premultiplied ARGB ints,
+     * into line if it is big enough.
+     */
+    private static int[] tileRow(Tile t, int x, int y, int w, int[] line) {
+        if (t.state == PIXELS) {
+            return (int[]) t.image.getRaster().getDataElements(x, y, w, 1, line);
+        }
+        Arrays.fill(line, 0, w, t.state == EMPTY ? 0 : t.color.getRGB());
+        return line;
+    }
+
+    /**
+     * Reads row y as non-premultiplied ARGB ints into argb, which must
+     * hold at least width values.
+     */
+    void getRow(int y, int[] argb) {
+        int row = y / TILE_SIZE;
+        int[] line = null;
+        for (int col = 0; col < columns; col++) {
+            Tile t = tiles[row * columns + col];
+            int x = col * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - x);
+            if (t.state == PIXELS) {
+                line = (int[]) t.image.getRaster().getDataElements(0, y - row * TILE_SIZE, w, 1, line);
+                System.arraycopy(line, 0, argb, x, w);
+            } else {
+                Arrays.fill(argb, x, x + w, t.state == EMPTY ? 0 : t.color.getRGB());
+            }
+        }
+    }
+
+    /**
+     * The whole image as a single BufferedImage of TYPE_INT_ARGB.
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                Tile t = tiles[row * columns + col];
+                Rectangle tb = tileBounds(col, row);
+                if (t.state == PIXELS) {
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(t.image, tb.x, tb.y, null);
+                } else if (t.state == SOLID) {
+                    g.setComposite(AlphaComposite.Src);
+                    g.setPaint(t.color);
+                    g.fill(tb);
+                }
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    private Rectangle tileBounds(int col, int row) {
+        int x = col * TILE_SIZE, y = row * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    private static Color colorOf(Tile t) {
+        return t.state == EMPTY ? DrawingCanvas.CLEAR_PAINT : t.color;
+    }
+
+    private static void setColor(Tile t, Color color) {
+        t.image = null;
+        t.shared = false;
+        if (color.getAlpha() == 0) {
+            t.state = EMPTY;
+            t.color = null;
+        } else {
+            t.state = SOLID;
+            t.color = color;
+        }
+    }
+
+    /**
+     * A Src graphics in canvas coordinates, clipped to the tile, onto
+     * pixels the tile owns outright; they are allocated or copied first if
+     * need be.
+     */
+    private Graphics2D graphics(Tile t, int col, int row) {
+        Rectangle tb = tileBounds(col, row);
+        Graphics2D g = pixels(t, tb).createGraphics();
+        g.translate(-tb.x, -tb.y);
+        g.clip(tb);
+        g.setComposite(AlphaComposite.Src);
+        return g;
+    }
+
+    /**
+     * The tile's pixels, allocated or copied first if it does not own
+     * them outright.
+     */
+    private BufferedImage pixels(Tile t, Rectangle tb) {
+        if (t.state != PIXELS || t.shared) {
+            BufferedImage image = new BufferedImage(tb.width, tb.height,
+                    BufferedImage.TYPE_INT_ARGB);
+            if (t.state == PIXELS) {
+                t.image.copyData(image.getRaster());
+            } else if (t.state == SOLID) {
+                Graphics2D g = image.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.setPaint(t.color);
+                g.fillRect(0, 0, tb.width, tb.height);
+                g.dispose();
+            }
+            t.state = PIXELS;
+            t.color = null;
+            t.image = image;
+            t.shared = false;
+        }
+        return t.image;
+    }
+}
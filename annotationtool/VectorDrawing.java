@@ -0,0 +1,512 @@
+package annotationtool;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.PathIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The visible part of a canvas's history, from the topmost clear up, as
+ * shapes to be written out as SVG or PDF. Both are streamed straight from
+ * the shapes' path iterators, so a session of a few hundred strokes comes
+ * to kilobytes whatever the size of the screen.
+ * <p>
+ * The canvas keeps translucent and opaque ink on layers of their own, the
+ * highlighter's beneath the pen's, over the background of the clear. Within
+ * a layer each stroke replaces what is beneath it rather than blending
+ * (AlphaComposite.Src), which matters for translucent ink: a highlighter
+ * over another replaces it, and the transparent highlighter rubs out both
+ * layers. In SVG everything on a layer drawn before a translucent stroke
+ * is masked out where the stroke falls; in PDF each layer is a knockout
+ * group, where each stroke replaces those before it. BasicStrokes
+ * are written as strokes with their width, caps, joins and dashes; other
+ * strokes as their filled outlines. Paints other than Color are written as
+ * opaque black.
+ * <p>
+ * The shapes never change once taken, so a drawing may be written on any
+ * thread, any number of times.
+ */
+public class VectorDrawing {
+
+    private final int width;
+    private final int height;
+    private final Color background; // the clear everything is drawn on, or null
+    private final Shape[] shapes;
+    private final Stroke[] strokes;
+    private final Color[] colors;
+    private final int[] layerStarts; // index of each layer's first shape, from the bottom
+
+    VectorDrawing(int width, int height, Paint background,
+            Shape[] shapes, Stroke[] strokes, Paint[] paints, int[] layerStarts) {
+        this.width = width;
+        this.height = height;
+        Color color = background == null ? null : color(background);
+        this.background = color == null || color.getAlpha() == 0 ? null : color;
+        this.shapes = shapes;
+        this.strokes = strokes;
+        this.colors = new Color[paints.length];
+        for (int i = 0; i < paints.length; i++) {
+            colors[i] = color(paints[i]);
+        }
+        this.layerStarts = layerStarts;
+    }
+
+    /**
+     * The index after the last shape of layer l.
+     */
+    private int layerEnd(int l) {
+        return l + 1 < layerStarts.length ? layerStarts[l + 1] : shapes.length;
+    }
+
+    /**
+     * How many strokes the drawing has.
+     */
+    public int getShapeCount() {
+        return shapes.length;
+    }
+
+    public void writeSvg(OutputStream out) throws IOException {
+        Output o = new Output(out);
+        o.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<svg xmlns=\"http://www.w3.org/2000/svg\""
+                + " xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"").print(width)
+                .print("\" height=\"").print(height)
+                .print("\" viewBox=\"0 0 ").print(width).print(' ').print(height)
+                .print("\">\n");
+        BitSet translucent = new BitSet(shapes.length);
+        for (int i = 0; i < shapes.length; i++) {
+            translucent.set(i, colors[i].getAlpha() < 255);
+        }
+        if (!translucent.isEmpty()) {
+            // a translucent stroke's path is written once, for both its
+            // mask and itself
+            o.print("<defs>\n");
+            for (int i = translucent.nextSetBit(0); i >= 0; i = translucent.nextSetBit(i + 1)) {
+                o.print("<path id=\"s").print(i).print("\" d=\"");
+                svgPath(o, i);
+                o.print("\"/>\n<mask id=\"m").print(i)
+                        .print("\" maskUnits=\"userSpaceOnUse\" x=\"0\" y=\"0\" width=\"")
+                        .print(width).print("\" height=\"").print(height)
+                        .print("\"><rect width=\"").print(width).print("\" height=\"")
+                        .print(height).print("\" fill=\"white\"/><use xlink:href=\"#s")
+                        .print(i).print('"');
+                svgPaint(o, i, Color.BLACK);
+                o.print("/></mask>\n");
+            }
+            o.print("</defs>\n");
+        }
+        if (background != null) {
+            o.print("<rect width=\"").print(width).print("\" height=\"").print(height)
+                    .print("\" fill=\"");
+            svgColor(o, background);
+            o.print('"');
+            if (background.getAlpha() < 255) {
+                o.print(" fill-opacity=\"").number(background.getAlpha() / 255.0).print('"');
+            }
+            o.print("/>\n");
+        }
+        for (int l = 0; l < layerStarts.length; l++) {
+            int start = layerStarts[l];
+            int end = layerEnd(l);
+            // the outermost group is masked by the layer's last translucent stroke
+            for (int i = translucent.previousSetBit(end - 1); i >= start;
+                    i = translucent.previousSetBit(i - 1)) {
+                o.print("<g mask=\"url(#m").print(i).print(")\">\n");
+            }
+            for (int i = start; i < end; i++) {
+                if (translucent.get(i)) {
+                    o.print("</g>\n<use xlink:href=\"#s").print(i).print('"');
+                } else {
+                    o.print("<path d=\"");
+                    svgPath(o, i);
+                    o.print('"');
+                }
+                svgPaint(o, i, colors[i]);
+                o.print("/>\n");
+            }
+        }
+        o.print("</svg>\n");
+        o.flush();
+    }
+
+    /**
+     * Writes a one-page PDF the size of the canvas, one point to a pixel.
+     */
+    public void writePdf(OutputStream out) throws IOException {
+        int groups = 0;
+        for (int l = 0; l < layerStarts.length; l++) {
+            if (layerEnd(l) > layerStarts[l]) {
+                groups++;
+            }
+        }
+        Output o = new Output(out);
+        long[] offsets = new long[6 + 2 * groups];
+        BitSet alphas = new BitSet(256);
+        o.print("%PDF-1.4\n");
+
+        // the page flips the y axis, fills the background and draws each
+        // layer's group over it
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Output page = new Output(bytes);
+        page.print("q 1 0 0 -1 0 ").print(height).print(" cm\n");
+        if (background != null) {
+            pdfState(page, background, alphas);
+            pdfColor(page, background).print(" rg 0 0 ").print(width).print(' ').print(height)
+                    .print(" re f Q\n");
+        }
+        for (int g = 0; g < groups; g++) {
+            page.print("/L").print(g).print(" Do\n");
+        }
+        page.print("Q\n").flush();
+        offsets[4] = o.position();
+        o.print("4 0 obj\n<< /Length ").print(bytes.size()).print(" >>\nstream\n");
+        bytes.writeTo(o);
+        o.print("endstream\nendobj\n");
+
+        int object = 6;
+        for (int l = 0; l < layerStarts.length; l++) {
+            if (layerEnd(l) == layerStarts[l]) {
+                continue;
+            }
+            offsets[object] = o.position();
+            o.print(object).print(" 0 obj\n<< /Type /XObject /Subtype /Form /BBox [0 0 ")
+                    .print(width).print(' ').print(height)
+                    .print("] /Group << /S /Transparency /I true /K true >>"
+                    + " /Resources 5 0 R /Filter /FlateDecode /Length ").print(object + 1)
+                    .print(" 0 R >>\nstream\n");
+            long start = o.position();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream compressed = new DeflaterOutputStream(o, deflater);
+                Output c = new Output(compressed);
+                for (int i = layerStarts[l]; i < layerEnd(l); i++) {
+                    pdfShape(c, i, alphas);
+                }
+                c.flush();
+                compressed.finish();
+            } finally {
+                deflater.end();
+            }
+            long length = o.position() - start;
+            o.print("\nendstream\nendobj\n");
+
+            offsets[object + 1] = o.position();
+            o.print(object + 1).print(" 0 obj\n").print(length).print("\nendobj\n");
+            object += 2;
+        }
+
+        offsets[5] = o.position();
+        o.print("5 0 obj\n<< /ExtGState <<");
+        for (int a = alphas.nextSetBit(0); a >= 0; a = alphas.nextSetBit(a + 1)) {
+            o.print(" /A").print(a).print(" << /CA ").number(a / 255.0)
+                    .print(" /ca ").number(a / 255.0).print(" >>");
+        }
+        o.print(" >> /XObject <<");
+        for (int g = 0; g < groups; g++) {
+            o.print(" /L").print(g).print(' ').print(6 + 2 * g).print(" 0 R");
+        }
+        o.print(" >> >>\nendobj\n");
+
+        offsets[3] = o.position();
+        o.print("3 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ").print(width)
+                .print(' ').print(height).print("] /Resources 5 0 R"
+                + " /Contents 4 0 R >>\nendobj\n");
+        offsets[2] = o.position();
+        o.print("2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+        offsets[1] = o.position();
+        o.print("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+        long xref = o.position();
+        o.print("xref\n0 ").print(offsets.length).print("\n0000000000 65535 f \n");
+        for (int i = 1; i < offsets.length; i++) {
+            String offset = Long.toString(offsets[i]);
+            o.print("0000000000".substring(offset.length())).print(offset).print(" 00000 n \n");
+        }
+        o.print("trailer\n<< /Size ").print(offsets.length).print(" /Root 1 0 R >>\nstartxref\n")
+                .print(xref).print("\n%%EOF\n");
+        o.flush();
+    }
+
+    /**
+     * Writes the operators that draw shape i, in a graphics state of its own.
+     */
+    private void pdfShape(Output c, int i, BitSet alphas) throws IOException {
+        pdfState(c, colors[i], alphas);
+        pdfColor(c, colors[i]);
+        Stroke stroke = strokes[i];
+        if (stroke instanceof BasicStroke) {
+            BasicStroke bs = (BasicStroke) stroke;
+            c.print(" RG ").number(bs.getLineWidth()).print(" w ").print(bs.getEndCap())
+                    .print(" J ").print(bs.getLineJoin()).print(" j");
+            if (bs.getLineJoin() == BasicStroke.JOIN_MITER) {
+                c.print(' ').number(bs.getMiterLimit()).print(" M");
+            }
+            float[] dashes = bs.getDashArray();
+            if (dashes != null) {
+                c.print(" [");
+                for (float d : dashes) {
+                    c.number(d).print(' ');
+                }
+                c.print("] ").number(bs.getDashPhase()).print(" d");
+            }
+            c.print('\n');
+            pdfPath(c, shapes[i]);
+            c.print("S Q\n");
+        } else {
+            Shape outline = stroke.createStrokedShape(shapes[i]);
+            c.print(" rg\n");
+            pdfPath(c, outline);
+            c.print(outline.getPathIterator(null).getWindingRule()
+                    == PathIterator.WIND_EVEN_ODD ? "f* Q\n" : "f Q\n");
+        }
+    }
+
+    /**
+     * Writes the path data, the first point of each subpath absolute and
+     * the rest relative to the point before, rounded to thousandths so the
+     * offsets add up exactly. A command letter is only written when it
+     * changes, and a minus sign does for a separator.
+     */
+    private void svgPath(Output o, int i) throws IOException {
+        Shape shape = strokes[i] instanceof BasicStroke
+                ? shapes[i] : strokes[i].createStrokedShape(shapes[i]);
+        float[] c = new float[6];
+        long x = 0, y = 0, startX = 0, startY = 0;
+        char last = 0;
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            int type = it.currentSegment(c);
+            char command = "MlqcZ".charAt(type);
+            int n = type == PathIterator.SEG_CLOSE ? 0
+                    : type == PathIterator.SEG_QUADTO ? 4
+                    : type == PathIterator.SEG_CUBICTO ? 6 : 2;
+            boolean separate = command == last && n > 0;
+            if (!separate) {
+                o.print(command);
+            }
+            for (int k = 0; k < n; k++) {
+                long v = Math.round(c[k] * 1000.0);
+                long offset = type == PathIterator.SEG_MOVETO ? v : v - ((k & 1) == 0 ? x : y);
+                if (separate && offset >= 0) {
+                    o.print(' ');
+                }
+                o.thousandths(offset);
+                separate = true;
+            }
+            if (type == PathIterator.SEG_CLOSE) {
+                x = startX;
+                y = startY;
+            } else {
+                x = Math.round(c[n - 2] * 1000.0);
+                y = Math.round(c[n - 1] * 1000.0);
+                if (type == PathIterator.SEG_MOVETO) {
+                    startX = x;
+                    startY = y;
+                }
+            }
+            last = command;
+        }
+    }
+
+    /**
+     * Writes the attributes that paint shape i in color: as a stroke for a
+     * BasicStroke, otherwise as a fill of the outline its path holds.
+     */
+    private void svgPaint(Output o, int i, Color color) throws IOException {
+        boolean stroked = strokes[i] instanceof BasicStroke;
+        o.print(stroked ? " fill=\"none\" stroke=\"" : " fill=\"");
+        svgColor(o, color);
+        o.print('"');
+        if (color.getAlpha() < 255) {
+            o.print(stroked ? " stroke-opacity=\"" : " fill-opacity=\"")
+                    .number(color.getAlpha() / 255.0).print('"');
+        }
+        if (!stroked) {
+            if (strokes[i].createStrokedShape(shapes[i]).getPathIterator(null)
+                    .getWindingRule() == PathIterator.WIND_EVEN_ODD) {
+                o.print(" fill-rule=\"evenodd\"");
+            }
+            return;
+        }
+        BasicStroke bs = (BasicStroke) strokes[i];
+        o.print(" stroke-width=\"").number(bs.getLineWidth()).print('"');
+        if (bs.getEndCap() != BasicStroke.CAP_BUTT) {
+            o.print(bs.getEndCap() == BasicStroke.CAP_ROUND
+                    ? " stroke-linecap=\"round\"" : " stroke-linecap=\"square\"");
+        }
+        if (bs.getLineJoin() == BasicStroke.JOIN_MITER) {
+            o.print(" stroke-miterlimit=\"").number(bs.getMiterLimit()).print('"');
+        } else {
+            o.print(bs.getLineJoin() == BasicStroke.JOIN_ROUND
+                    ? " stroke-linejoin=\"round\"" : " stroke-linejoin=\"bevel\"");
+        }
+        float[] dashes = bs.getDashArray();
+        if (dashes != null) {
+            o.print(" stroke-dasharray=\"");
+            for (int d = 0; d < dashes.length; d++) {
+                o.print(d == 0 ? "" : ",").number(dashes[d]);
+            }
+            o.print("\" stroke-dashoffset=\"").number(bs.getDashPhase()).print('"');
+        }
+    }
+
+    private static void svgColor(Output o, Color color) throws IOException {
+        String hex = Integer.toHexString(color.getRGB() & 0xffffff);
+        o.print('#').print("000000".substring(hex.length())).print(hex);
+    }
+
+    /**
+     * Starts a saved graphics state with color's alpha, noting the alpha
+     * for the resources.
+     */
+    private static void pdfState(Output o, Color color, BitSet alphas) throws IOException {
+        o.print('q');
+        if (color.getAlpha() < 255) {
+            alphas.set(color.getAlpha());
+            o.print(" /A").print(color.getAlpha()).print(" gs");
+        }
+        o.print(' ');
+    }
+
+    private static Output pdfColor(Output o, Color color) throws IOException {
+        return o.number(color.getRed() / 255.0).print(' ').number(color.getGreen() / 255.0)
+                .print(' ').number(color.getBlue() / 255.0);
+    }
+
+    /**
+     * Writes the path, with quadratic segments raised to the cubics PDF has.
+     */
+    private static void pdfPath(Output o, Shape shape) throws IOException {
+        float[] c = new float[6];
+        float x = 0, y = 0;
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    o.number(x = c[0]).print(' ').number(y = c[1]).print(" m\n");
+                    break;
+                case PathIterator.SEG_LINETO:
+                    o.number(x = c[0]).print(' ').number(y = c[1]).print(" l\n");
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    o.number(x + 2 * (c[0] - x) / 3).print(' ').number(y + 2 * (c[1] - y) / 3)
+                            .print(' ').number(c[2] + 2 * (c[0] - c[2]) / 3)
+                            .print(' ').number(c[3] + 2 * (c[1] - c[3]) / 3)
+                            .print(' ').number(x = c[2]).print(' ').number(y = c[3])
+                            .print(" c\n");
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    o.number(c[0]).print(' ').number(c[1]).print(' ').number(c[2])
+                            .print(' ').number(c[3]).print(' ').number(x = c[4])
+                            .print(' ').number(y = c[5]).print(" c\n");
+                    break;
+                default:
+                    // closing returns to the start of the subpath
+                    o.print("h\n");
+            }
+        }
+    }
+
+    private static Color color(Paint paint) {
+        return paint instanceof Color ? (Color) paint : Color.BLACK;
+    }
+
+    /**
+     * Buffered output that counts the bytes written, for the PDF
+     * cross-reference table, and writes ASCII numbers without going
+     * through String.format.
+     */
+    private static class Output extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int used;
+        private long flushed;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        long position() {
+            return flushed + used;
+        }
+
+        Output print(char c) throws IOException {
+            if (used == buffer.length) {
+                drain();
+            }
+            buffer[used++] = (byte) c;
+            return this;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            print((char) (b & 0xff));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (used == buffer.length) {
+                    drain();
+                }
+                buffer[used++] = b[i];
+            }
+        }
+
+        Output print(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                print(s.charAt(i));
+            }
+            return this;
+        }
+
+        Output print(long n) throws IOException {
+            return print(Long.toString(n));
+        }
+
+        /**
+         * Writes v to three decimal places, without trailing zeros.
+         */
+        Output number(double v) throws IOException {
+            return thousandths(Math.round(v * 1000));
+        }
+
+        Output thousandths(long thousandths) throws IOException {
+            if (thousandths < 0) {
+                print('-');
+                thousandths = -thousandths;
+            }
+            print(thousandths / 1000);
+            int fraction = (int) (thousandths % 1000);
+            if (fraction != 0) {
+                char[] digits = {'.', (char) ('0' + fraction / 100),
+                    (char) ('0' + fraction / 10 % 10), (char) ('0' + fraction % 10)};
+                int end = digits.length;
+                while (digits[end - 1] == '0') {
+                    end--;
+                }
+                print(new String(digits, 0, end));
+            }
+            return this;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, used);
+            flushed += used;
+            used = 0;
+        }
+    }
+}
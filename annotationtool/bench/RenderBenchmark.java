@@ -0,0 +1,1006 @@
+package annotationtool.bench;
+
+import annotationtool.BroadcastViewer;
+import annotationtool.Broadcaster;
+import annotationtool.DrawingCanvas;
+import annotationtool.Histogram;
+import annotationtool.InkPredictor;
+import annotationtool.InputTrace;
+import annotationtool.PngEncoder;
+import annotationtool.RenderThread;
+import annotationtool.SessionJournal;
+import annotationtool.TiledImage;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Headless micro benchmarks for the drawing engine. Run with
+ * <pre>
+ * java -Djava.awt.headless=true annotationtool.bench.RenderBenchmark [name...]
+ * </pre>
+ * where each name selects one benchmark; with no names all of them run.
+ * Each benchmark warms up, then reports the mean time per operation.
+ * <p>
+ * The tree is a plain source root compiled with javac, with no Maven or
+ * Gradle build to hang a JMH module off, so this small harness stands in
+ * for one. It runs in a single JVM with no forking or dead-code
+ * blackholes beyond the sink, so compare numbers from the same machine
+ * and JVM, and prefer the relative ones it prints.
+ */
+public class RenderBenchmark {
+
+    static final int WIDTH = 2560;
+    static final int HEIGHT = 1440;
+
+    /**
+     * One timed operation; returns something derived from its work so the
+     * JIT cannot discard it.
+     */
+    interface Op {
+
+        long run() throws Exception;
+    }
+
+    static long sink;
+
+    static double measure(String name, int warmup, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            sink += op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        double micros = elapsed / 1000.0 / iterations;
+        System.out.printf("%-32s %12.1f us/op  (%d ops)%n", name, micros, iterations);
+        return micros;
+    }
+
+    static DrawingCanvas newCanvas() {
+        return newCanvas(WIDTH, HEIGHT);
+    }
+
+    static DrawingCanvas newCanvas(int w, int h) {
+        DrawingCanvas canvas = new DrawingCanvas(w, h);
+        canvas.setPaint(new Color(255, 0, 0, 255));
+        canvas.setStroke(new BasicStroke(15, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        return canvas;
+    }
+
+    /**
+     * Draws a wandering freehand stroke of the given number of points.
+     */
+    static void scribble(DrawingCanvas canvas, Random random, int points) {
+        int w = canvas.getWidth(), h = canvas.getHeight();
+        float x = random.nextInt(w), y = random.nextInt(h);
+        canvas.beginStroke(x, y);
+        for (int i = 0; i < points; i++) {
+            x = Math.max(0, Math.min(w - 1, x + random.nextInt(9) - 4));
+            y = Math.max(0, Math.min(h - 1, y + random.nextInt(9) - 4));
+            canvas.extendStroke(x, y);
+        }
+        canvas.endStroke();
+    }
+
+    static DrawingCanvas canvasWithHistory(int shapes) {
+        return canvasWithHistory(shapes, WIDTH, HEIGHT);
+    }
+
+    static DrawingCanvas canvasWithHistory(int shapes, int w, int h) {
+        DrawingCanvas canvas = newCanvas(w, h);
+        Random random = new Random(shapes);
+        for (int i = 0; i < shapes; i++) {
+            scribble(canvas, random, 200);
+        }
+        return canvas;
+    }
+
+    /**
+     * Drag events with paint of just the damaged area, as the window does,
+     * against the pixel traffic of rebuilding and blitting the whole frame.
+     */
+    static void dragFrame() throws Exception {
+        final DrawingCanvas canvas = newCanvas();
+        final BufferedImage scratch = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        final Rectangle damage = new Rectangle();
+        canvas.setDamageListener(new DrawingCanvas.DamageListener() {
+            @Override
+            public void damaged(Rectangle area) {
+                damage.add(area);
+            }
+        });
+        final Random random = new Random(1);
+        final long[] pixels = new long[1];
+        canvas.beginStroke(WIDTH / 2, HEIGHT / 2);
+        Op op = new Op() {
+            float x = WIDTH / 2, y = HEIGHT / 2;
+
+            @Override
+            public long run() {
+                x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(9) - 4));
+                y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(9) - 4));
+                damage.setBounds(0, 0, -1, -1);
+                canvas.extendStroke(x, y);
+                Graphics2D g = scratch.createGraphics();
+                g.setClip(damage);
+                canvas.compose(g, damage);
+                g.dispose();
+                pixels[0] += (long) damage.width * damage.height;
+                return damage.width;
+            }
+        };
+        measure("drag frame (damaged area)", 2000, 20000, op);
+        pixels[0] = 0;
+        int events = 5000;
+        for (int i = 0; i < events; i++) {
+            op.run();
+        }
+        // before: clear + copy of main + blit, each over the whole frame;
+        // after: compose + blit over the damaged area only
+        long before = 3L * 4 * WIDTH * HEIGHT;
+        long after = 2L * 4 * pixels[0] / events;
+        System.out.printf("%-32s %12d bytes/event before, %d after%n",
+                "drag frame pixel traffic", before, after);
+    }
+
+    static void strokeCommit() throws Exception {
+        final DrawingCanvas canvas = newCanvas();
+        final Random random = new Random(2);
+        measure("stroke commit (200 points)", 200, 2000, new Op() {
+            @Override
+            public long run() {
+                scribble(canvas, random, 200);
+                return canvas.getHistorySize();
+            }
+        });
+    }
+
+    static void undoReplay(int shapes) throws Exception {
+        final DrawingCanvas canvas = canvasWithHistory(shapes);
+        measure("undo+redo (" + shapes + " shapes)", 20, 200, new Op() {
+            @Override
+            public long run() {
+                canvas.undo();
+                canvas.redo();
+                return canvas.getHistorySize();
+            }
+        });
+    }
+
+    /**
+     * Undo and redo of a pen stroke over a history of highlighter strokes,
+     * which replays just the pen layer, against the same for a highlighter
+     * stroke over them, which replays the highlighter layer's history.
+     */
+    static void layeredUndo(int shapes) throws Exception {
+        final DrawingCanvas canvas = newCanvas();
+        canvas.setPaint(new Color(255, 255, 0, 128));
+        canvas.setStroke(new BasicStroke(25, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        Random random = new Random(shapes);
+        for (int i = 0; i < shapes; i++) {
+            scribble(canvas, random, 200);
+        }
+        Op op = new Op() {
+            @Override
+            public long run() {
+                canvas.undo();
+                canvas.redo();
+                canvas.frame();
+                return canvas.getHistorySize();
+            }
+        };
+        measure("highlighter undo+redo (" + shapes + ")", 20, 200, op);
+        canvas.setPaint(new Color(0, 0, 255));
+        canvas.setStroke(new BasicStroke(15, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        scribble(canvas, random, 200);
+        measure("pen undo+redo (" + shapes + " hl)", 20, 200, op);
+    }
+
+    /**
+     * Finding the strokes under one eraser movement, which the grid index
+     * keeps independent of how much history lies elsewhere on the canvas,
+     * and a short erase gesture followed by its undo.
+     */
+    static void strokeEraser(int shapes) throws Exception {
+        final DrawingCanvas canvas = canvasWithHistory(shapes);
+        final Random random = new Random(3);
+        measure("eraser hit test (" + shapes + " shapes)", 2000, 20000, new Op() {
+            @Override
+            public long run() {
+                float x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+                return canvas.strokesCrossing(x, y, x + 6, y + 3);
+            }
+        });
+        measure("erase+undo (" + shapes + " shapes)", 10, 100, new Op() {
+            @Override
+            public long run() {
+                float x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+                canvas.beginErase(x, y);
+                for (int i = 1; i <= 10; i++) {
+                    canvas.extendErase(x + 4 * i, y + 2 * i);
+                }
+                canvas.endErase();
+                canvas.undo();
+                return canvas.getHistorySize();
+            }
+        });
+    }
+
+    /**
+     * Full-canvas replay of a history with the tiles rasterized by 1, 2,
+     * 4... threads up to the processor count, checking each result against
+     * the serial one pixel for pixel.
+     */
+    static void parallelReplay(int shapes, int warmup, int iterations) throws Exception {
+        String keyframes = System.getProperty("annotationtool.keyframes.memory");
+        String parallelism = System.getProperty("annotationtool.replay.parallelism");
+        // without keyframes every undo replays the whole history
+        System.setProperty("annotationtool.keyframes.memory", "0");
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            double serialMicros = 0;
+            BufferedImage serial = null;
+            for (int threads = 1; threads <= cores; threads = threads < cores
+                    ? Math.min(cores, threads * 2) : cores + 1) {
+                System.setProperty("annotationtool.replay.parallelism", String.valueOf(threads));
+                final DrawingCanvas canvas = canvasWithHistory(shapes);
+                double micros = measure("replay " + shapes + " shapes, " + threads + " threads",
+                        warmup, iterations, new Op() {
+                            @Override
+                            public long run() {
+                                // a clear, then undoing it, rebuilds the whole canvas
+                                canvas.clear(Color.WHITE);
+                                canvas.undo();
+                                return canvas.getHistorySize();
+                            }
+                        });
+                BufferedImage image = canvas.getImage();
+                if (serial == null) {
+                    serial = image;
+                    serialMicros = micros;
+                } else {
+                    boolean same = samePixels(serial, image);
+                    System.out.printf("%-32s %12.2fx speedup, %s serial%n", "",
+                            serialMicros / micros, same ? "identical to" : "DIFFERS FROM");
+                    if (!same) {
+                        throw new IllegalStateException(threads + " thread replay differs");
+                    }
+                }
+            }
+        } finally {
+            restoreProperty("annotationtool.keyframes.memory", keyframes);
+            restoreProperty("annotationtool.replay.parallelism", parallelism);
+        }
+    }
+
+    static boolean samePixels(BufferedImage a, BufferedImage b) {
+        int w = a.getWidth(), h = a.getHeight();
+        int[] rowA = new int[w], rowB = new int[w];
+        for (int y = 0; y < h; y++) {
+            a.getRGB(0, y, w, 1, rowA, 0, w);
+            b.getRGB(0, y, w, 1, rowB, 0, w);
+            if (!Arrays.equals(rowA, rowB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Time from posting each drag point to a RenderThread until a frame
+     * shows it, with points arriving every 4 ms, first alone and then with
+     * a clear and its undo posted every 50 ms. Keyframes are off, so each
+     * undo replays the whole 1000 stroke history over the whole canvas.
+     */
+    static void renderLatency() throws Exception {
+        String keyframes = System.getProperty("annotationtool.keyframes.memory");
+        System.setProperty("annotationtool.keyframes.memory", "0");
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                final boolean replays = pass == 1;
+                DrawingCanvas canvas = canvasWithHistory(1000);
+                RenderThread renderer = new RenderThread(canvas, 16, new RenderThread.Listener() {
+                    @Override
+                    public void framePublished(Rectangle damage) {
+                    }
+                });
+                renderer.start();
+                Random random = new Random(5);
+                long nextReplay = System.nanoTime();
+                for (int stroke = 0; stroke < 25; stroke++) {
+                    final float x0 = random.nextInt(WIDTH), y0 = random.nextInt(HEIGHT);
+                    renderer.post(new RenderThread.Command() {
+                        @Override
+                        public void run(DrawingCanvas canvas) {
+                            canvas.beginStroke(x0, y0);
+                        }
+                    });
+                    float x = x0, y = y0;
+                    for (int i = 0; i < 40; i++) {
+                        Thread.sleep(4);
+                        x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(21) - 10));
+                        y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(21) - 10));
+                        final float px = x, py = y;
+                        renderer.post(new RenderThread.Command() {
+                            @Override
+                            public void run(DrawingCanvas canvas) {
+                                canvas.extendStroke(px, py);
+                            }
+                        });
+                        if (replays && System.nanoTime() >= nextReplay) {
+                            nextReplay += 50000000L;
+                            renderer.post(new RenderThread.Command() {
+                                @Override
+                                public void run(DrawingCanvas canvas) {
+                                    canvas.clear(Color.WHITE);
+                                    canvas.undo();
+                                }
+                            });
+                        }
+                    }
+                    renderer.post(new RenderThread.Command() {
+                        @Override
+                        public void run(DrawingCanvas canvas) {
+                            canvas.endStroke();
+                        }
+                    });
+                }
+                renderer.shutdown(10, TimeUnit.SECONDS);
+                System.out.printf("%-32s %s%n", replays ? "render us, clear+undo every 50 ms"
+                        : "render us, drawing only", renderer.getLatency());
+            }
+        } finally {
+            restoreProperty("annotationtool.keyframes.memory", keyframes);
+        }
+    }
+
+    /**
+     * Broadcasting 60 strokes drawn with a point every 4 ms, with an erase
+     * and an undo every 10, to two viewers over loopback and a third that
+     * joins halfway: the time from each record to its acknowledgement, the
+     * bytes sent per stroke, and whether every viewer ends up showing
+     * exactly what was drawn.
+     */
+    static void broadcastLatency() throws Exception {
+        RenderThread.Listener none = new RenderThread.Listener() {
+            @Override
+            public void framePublished(Rectangle damage) {
+            }
+        };
+        int w = 1280, h = 720;
+        DrawingCanvas presented = newCanvas(w, h);
+        RenderThread presenter = new RenderThread(presented, 16, none);
+        presenter.start();
+        Broadcaster broadcaster = new Broadcaster(presenter, 0,
+                Broadcaster.DEFAULT_FRAME_MILLIS);
+        broadcaster.start();
+        List<DrawingCanvas> viewed = new ArrayList<DrawingCanvas>();
+        List<RenderThread> viewerRenderers = new ArrayList<RenderThread>();
+        List<BroadcastViewer> viewers = new ArrayList<BroadcastViewer>();
+        Random random = new Random(5);
+        for (int stroke = 0; stroke < 60; stroke++) {
+            if (stroke == 0 || stroke == 30) {
+                for (int i = 0; i < (stroke == 0 ? 2 : 1); i++) {
+                    DrawingCanvas canvas = newCanvas(w, h);
+                    RenderThread renderer = new RenderThread(canvas, 16, none);
+                    renderer.start();
+                    BroadcastViewer viewer = new BroadcastViewer(renderer, "localhost",
+                            broadcaster.getPort());
+                    viewer.start();
+                    viewed.add(canvas);
+                    viewerRenderers.add(renderer);
+                    viewers.add(viewer);
+                }
+            }
+            final float x0 = random.nextInt(w), y0 = random.nextInt(h);
+            final boolean erase = stroke % 10 == 9;
+            presenter.post(new RenderThread.Command() {
+                @Override
+                public void run(DrawingCanvas canvas) {
+                    if (erase) {
+                        canvas.beginErase(x0, y0);
+                    } else {
+                        canvas.beginStroke(x0, y0);
+                    }
+                }
+            });
+            float x = x0, y = y0;
+            for (int i = 0; i < 40; i++) {
+                Thread.sleep(4);
+                x = Math.max(0, Math.min(w - 1, x + random.nextInt(21) - 10));
+                y = Math.max(0, Math.min(h - 1, y + random.nextInt(21) - 10));
+                final float px = x, py = y;
+                presenter.post(new RenderThread.Command() {
+                    @Override
+                    public void run(DrawingCanvas canvas) {
+                        canvas.extendErase(px, py);
+                        canvas.extendStroke(px, py);
+                    }
+                });
+            }
+            presenter.post(new RenderThread.Command() {
+                @Override
+                public void run(DrawingCanvas canvas) {
+                    canvas.endStroke();
+                    canvas.endErase();
+                    if (erase) {
+                        canvas.undo();
+                        canvas.undo();
+                        canvas.redo();
+                    }
+                }
+            });
+        }
+        final CountDownLatch drawn = new CountDownLatch(1);
+        presenter.post(new RenderThread.Command() {
+            @Override
+            public void run(DrawingCanvas canvas) {
+                drawn.countDown();
+            }
+        });
+        drawn.await();
+        boolean acknowledged = broadcaster.awaitAcknowledged(10, TimeUnit.SECONDS);
+        broadcaster.close();
+        presenter.shutdown(10, TimeUnit.SECONDS);
+        boolean same = acknowledged;
+        for (int i = 0; i < viewers.size(); i++) {
+            viewers.get(i).close();
+            viewerRenderers.get(i).shutdown(10, TimeUnit.SECONDS);
+            same &= viewed.get(i).getHistorySize() == presented.getHistorySize()
+                    && samePixels(presented.getImage(), viewed.get(i).getImage());
+        }
+        System.out.printf("%-32s %s%n", "broadcast record to ack us", broadcaster.getLatency());
+        System.out.printf("%-32s %12.1f bytes/stroke, viewers %s%n", "broadcast",
+                broadcaster.getBytesPerStroke(),
+                same ? "identical to presenter" : "DIFFER FROM presenter");
+    }
+
+    /**
+     * Restoring a 10,000 stroke session from its journal, parsing and the
+     * single replay that draws it, against the canvas it was recorded from.
+     */
+    static void journalRestore() throws Exception {
+        int strokes = 10000;
+        File file = File.createTempFile("session", ".journal");
+        String keyframes = System.getProperty("annotationtool.keyframes.memory");
+        System.setProperty("annotationtool.keyframes.memory", "0");
+        try {
+            DrawingCanvas recorded = newCanvas();
+            SessionJournal journal = SessionJournal.open(file, recorded,
+                    SessionJournal.DEFAULT_SYNC_MILLIS);
+            Random random = new Random(5);
+            long start = System.nanoTime();
+            for (int i = 0; i < strokes; i++) {
+                scribble(recorded, random, 100);
+                if (i % 1000 == 999) {
+                    recorded.undo();
+                    recorded.undo();
+                    recorded.redo();
+                }
+            }
+            journal.close();
+            System.out.printf("%-32s %12.1f us/stroke recording, %d bytes%n",
+                    "journal " + strokes + " strokes",
+                    (System.nanoTime() - start) / 1000.0 / strokes, file.length());
+
+            DrawingCanvas restored = null;
+            for (int i = 0; i < 3; i++) {
+                restored = newCanvas();
+                start = System.nanoTime();
+                SessionJournal.open(file, restored, SessionJournal.DEFAULT_SYNC_MILLIS).close();
+                long restore = System.nanoTime() - start;
+                // the same full replay again on its own, to split reading from drawing
+                start = System.nanoTime();
+                restored.clear(Color.WHITE);
+                restored.undo();
+                long draw = System.nanoTime() - start;
+                System.out.printf("%-32s %12.1f ms, of which %.1f ms reading the journal%n",
+                        "journal restore", restore / 1e6, Math.max(0, restore - draw) / 1e6);
+            }
+            System.out.printf("%-32s %12s%n", "", restored.getHistorySize()
+                    == recorded.getHistorySize()
+                    && samePixels(recorded.getImage(), restored.getImage())
+                    ? "identical to recording" : "DIFFERS FROM recording");
+        } finally {
+            file.delete();
+            restoreProperty("annotationtool.keyframes.memory", keyframes);
+        }
+    }
+
+    static void pngSave() throws Exception {
+        final DrawingCanvas canvas = canvasWithHistory(100);
+        measure("png save (ImageIO)", 3, 10, new Op() {
+            @Override
+            public long run() throws IOException {
+                CountingOutputStream out = new CountingOutputStream();
+                ImageIO.write(canvas.getImage(), "png", out);
+                return out.count;
+            }
+        });
+    }
+
+    /**
+     * Saving 300 strokes on a 4K overlay as PNG against writing the same
+     * strokes as SVG and PDF.
+     */
+    static void vectorSave() throws Exception {
+        final DrawingCanvas canvas = canvasWithHistory(300, 3840, 2160);
+        final PngEncoder encoder = new PngEncoder(PngEncoder.DEFAULT_LEVEL);
+        final CountingOutputStream png = new CountingOutputStream();
+        measure("save 300 strokes 4K png", 2, 5, new Op() {
+            @Override
+            public long run() throws IOException {
+                png.count = 0;
+                encoder.write(canvas.snapshot(), png);
+                return png.count;
+            }
+        });
+        System.out.printf("%-32s %12d bytes%n", "", png.count);
+        final CountingOutputStream svg = new CountingOutputStream();
+        measure("save 300 strokes 4K svg", 5, 20, new Op() {
+            @Override
+            public long run() throws IOException {
+                svg.count = 0;
+                canvas.vectorDrawing().writeSvg(svg);
+                return svg.count;
+            }
+        });
+        System.out.printf("%-32s %12d bytes%n", "", svg.count);
+        final CountingOutputStream pdf = new CountingOutputStream();
+        measure("save 300 strokes 4K pdf", 5, 20, new Op() {
+            @Override
+            public long run() throws IOException {
+                pdf.count = 0;
+                canvas.vectorDrawing().writePdf(pdf);
+                return pdf.count;
+            }
+        });
+        System.out.printf("%-32s %12d bytes%n", "", pdf.count);
+    }
+
+    /**
+     * Saving a 4K overlay with 300 strokes again after one more short
+     * stroke: finding what changed since the last save, which also spots a
+     * save with nothing changed, and writing only that against writing the
+     * whole image again.
+     */
+    static void deltaSave() throws Exception {
+        DrawingCanvas canvas = canvasWithHistory(300, 3840, 2160);
+        final PngEncoder encoder = new PngEncoder(PngEncoder.DEFAULT_LEVEL);
+        final TiledImage saved = canvas.frame().getImage();
+        final TiledImage same = canvas.frame().getImage();
+        scribble(canvas, new Random(7), 40);
+        final TiledImage edited = canvas.frame().getImage();
+        measure("changed since save, none", 10, 100, new Op() {
+            @Override
+            public long run() {
+                return same.changedSince(saved).width;
+            }
+        });
+        measure("changed since save, 1 stroke", 10, 100, new Op() {
+            @Override
+            public long run() {
+                return edited.changedSince(saved).width;
+            }
+        });
+        final Rectangle changed = edited.changedSince(saved);
+        double whole = measure("png save, whole image", 3, 10, new Op() {
+            @Override
+            public long run() throws IOException {
+                CountingOutputStream out = new CountingOutputStream();
+                encoder.write(edited, out);
+                return out.count;
+            }
+        });
+        double delta = measure("png save, " + changed.width + "x" + changed.height + " changed",
+                3, 10, new Op() {
+                    @Override
+                    public long run() throws IOException {
+                        CountingOutputStream out = new CountingOutputStream();
+                        encoder.write(edited, changed, out);
+                        return out.count;
+                    }
+                });
+        CountingOutputStream wholeOut = new CountingOutputStream();
+        encoder.write(edited, wholeOut);
+        CountingOutputStream deltaOut = new CountingOutputStream();
+        encoder.write(edited, changed, deltaOut);
+        System.out.printf("%-32s %12.1fx faster, %d bytes against %d%n", "png save, delta",
+                whole / delta, deltaOut.count, wholeOut.count);
+    }
+
+    /**
+     * ImageIO against the banded parallel encoder at common frame sizes.
+     */
+    static void pngEncoders() throws Exception {
+        int[][] sizes = {{1920, 1080}, {2560, 1440}, {3840, 2160}};
+        for (int[] size : sizes) {
+            final BufferedImage image = canvasWithHistory(100, size[0], size[1]).getImage();
+            String label = size[0] + "x" + size[1];
+            final CountingOutputStream imageIOSized = new CountingOutputStream();
+            measure("png " + label + " ImageIO", 2, 5, new Op() {
+                @Override
+                public long run() throws IOException {
+                    imageIOSized.count = 0;
+                    ImageIO.write(image, "png", imageIOSized);
+                    return imageIOSized.count;
+                }
+            });
+            System.out.printf("%-32s %12d bytes%n", "", imageIOSized.count);
+            for (final int level : new int[]{1, PngEncoder.DEFAULT_LEVEL, 9}) {
+                final PngEncoder encoder = new PngEncoder(level);
+                final CountingOutputStream sized = new CountingOutputStream();
+                measure("png " + label + " encoder level " + level, 2, 5, new Op() {
+                    @Override
+                    public long run() throws IOException {
+                        sized.count = 0;
+                        encoder.write(image, sized);
+                        return sized.count;
+                    }
+                });
+                System.out.printf("%-32s %12d bytes%n", "", sized.count);
+            }
+        }
+    }
+
+    /**
+     * How history was held before the packed store: a Path2D per stroke
+     * and a fresh BasicStroke for each one.
+     */
+    static class PathShape {
+
+        final Shape shape;
+        final Paint paint;
+        final Stroke stroke;
+
+        PathShape(Stroke stroke, Paint paint, Shape shape) {
+            this.stroke = stroke;
+            this.paint = paint;
+            this.shape = shape;
+        }
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Heap retained by 1,000 committed 200-point strokes.
+     */
+    static void historyHeap() {
+        int strokes = 1000, points = 200;
+        long base = usedHeap();
+        List<PathShape> paths = new ArrayList<PathShape>();
+        Random random = new Random(3);
+        for (int i = 0; i < strokes; i++) {
+            Path2D.Float p2d = new Path2D.Float();
+            float x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            p2d.moveTo(x, y);
+            for (int j = 0; j < points; j++) {
+                x += random.nextInt(9) - 4;
+                y += random.nextInt(9) - 4;
+                p2d.lineTo(x, y);
+            }
+            paths.add(new PathShape(
+                    new BasicStroke(15, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND),
+                    new Color(255, 0, 0, 255), p2d));
+        }
+        long before = usedHeap() - base;
+        sink += paths.size();
+        paths = null;
+
+        String tolerance = System.getProperty("annotationtool.stroke.tolerance");
+        String keyframes = System.getProperty("annotationtool.keyframes.memory");
+        String masks = System.getProperty("annotationtool.masks.memory");
+        System.setProperty("annotationtool.keyframes.memory", "0");
+        System.setProperty("annotationtool.masks.memory", "0");
+        try {
+            System.setProperty("annotationtool.stroke.tolerance", "0");
+            long packed = packedHeap(strokes, points);
+            System.clearProperty("annotationtool.stroke.tolerance");
+            long simplified = packedHeap(strokes, points);
+            System.out.printf("%-32s %12d bytes Path2D, %d packed, %d packed+simplified%n",
+                    "heap per 1000 strokes", before, packed, simplified);
+            restoreProperty("annotationtool.masks.memory", masks);
+            long withMasks = packedHeap(strokes, points);
+            System.out.printf("%-32s %12d bytes%n", "ink masks per 1000 strokes",
+                    withMasks - simplified);
+        } finally {
+            restoreProperty("annotationtool.stroke.tolerance", tolerance);
+            restoreProperty("annotationtool.keyframes.memory", keyframes);
+            restoreProperty("annotationtool.masks.memory", masks);
+        }
+    }
+
+    /**
+     * Heap retained by 10,000 strokes with their points held as floats,
+     * packed, and spilled to disk, and the undo of the latest stroke in
+     * each case, which should not notice.
+     */
+    static void historyTiers() throws Exception {
+        int strokes = 10000, points = 200;
+        String memory = System.getProperty("annotationtool.history.memory");
+        String packed = System.getProperty("annotationtool.history.packedMemory");
+        String masks = System.getProperty("annotationtool.masks.memory");
+        System.setProperty("annotationtool.masks.memory", "0");
+        try {
+            String[] names = {"floats", "packed", "spilled"};
+            for (int tier = 0; tier < names.length; tier++) {
+                if (tier >= 1) {
+                    System.setProperty("annotationtool.history.memory", "0");
+                }
+                if (tier >= 2) {
+                    System.setProperty("annotationtool.history.packedMemory", "0");
+                }
+                String keyframes = System.getProperty("annotationtool.keyframes.memory");
+                System.setProperty("annotationtool.keyframes.memory", "0");
+                long heap = packedHeap(strokes, points);
+                restoreProperty("annotationtool.keyframes.memory", keyframes);
+                System.out.printf("%-32s %12d bytes%n",
+                        "history heap, points " + names[tier], heap);
+                final DrawingCanvas canvas = canvasWithHistory(strokes);
+                measure("undo+redo, points " + names[tier], 20, 200, new Op() {
+                    @Override
+                    public long run() {
+                        canvas.undo();
+                        canvas.redo();
+                        return canvas.getHistorySize();
+                    }
+                });
+            }
+        } finally {
+            restoreProperty("annotationtool.history.memory", memory);
+            restoreProperty("annotationtool.history.packedMemory", packed);
+            restoreProperty("annotationtool.masks.memory", masks);
+        }
+    }
+
+    /**
+     * Heap held by a canvas spanning three 2560x2160 screens, empty, after a
+     * clear to a colour, and with strokes on it. Before tiling this was two
+     * full-size rasters whatever was drawn.
+     */
+    static void canvasHeap() {
+        int w = 7680, h = 2160;
+        String keyframes = System.getProperty("annotationtool.keyframes.memory");
+        System.setProperty("annotationtool.keyframes.memory", "0");
+        try {
+            long base = usedHeap();
+            DrawingCanvas canvas = newCanvas(w, h);
+            long empty = usedHeap() - base;
+            canvas.clear(new Color(255, 255, 255, 64));
+            long cleared = usedHeap() - base;
+            Random random = new Random(4);
+            for (int i = 0; i < 100; i++) {
+                scribble(canvas, random, 200);
+            }
+            long drawn = usedHeap() - base;
+            sink += canvas.getHistorySize();
+            System.out.printf("%-32s %12d bytes empty, %d cleared, %d with 100 strokes (%d untiled)%n",
+                    "heap " + w + "x" + h + " canvas", empty, cleared, drawn, 2L * 4 * w * h);
+        } finally {
+            restoreProperty("annotationtool.keyframes.memory", keyframes);
+        }
+    }
+
+    static long packedHeap(int strokes, int points) {
+        DrawingCanvas canvas = newCanvas();
+        long base = usedHeap();
+        Random random = new Random(3);
+        for (int i = 0; i < strokes; i++) {
+            scribble(canvas, random, points);
+        }
+        // tiles are allocated as strokes land on them; count only history
+        long used = usedHeap() - base - canvas.snapshot().getPixelBytes();
+        sink += canvas.getHistorySize();
+        return used;
+    }
+
+    /**
+     * Replays pointer traces through InkPredictors of several horizons and
+     * reports how far, in pixels, each guess lands from where the pointer
+     * really was that far ahead, against the distance the ink trails by
+     * with no prediction at all. The effective lead is how many
+     * milliseconds later the real pointer came nearest to each guess: the
+     * latency the prediction really hides. Traces recorded with
+     * -Dannotationtool.trace are read from the files
+     * -Dannotationtool.bench.traces lists; without any, synthetic strokes
+     * sampled like a 125 Hz mouse are used.
+     */
+    static void inkPrediction() throws Exception {
+        List<InputTrace.Stroke> strokes = new ArrayList<InputTrace.Stroke>();
+        String traces = System.getProperty("annotationtool.bench.traces");
+        if (traces != null) {
+            for (String path : traces.split(File.pathSeparator)) {
+                strokes.addAll(InputTrace.read(new File(path)));
+            }
+        } else {
+            Random random = new Random(7);
+            for (int i = 0; i < 200; i++) {
+                strokes.add(syntheticStroke(random));
+            }
+        }
+        float[] out = new float[6];
+        for (long horizon : new long[]{8, 16, 24, 32}) {
+            InkPredictor predictor = new InkPredictor(horizon);
+            Histogram error = new Histogram(); // hundredths of a pixel
+            Histogram trail = new Histogram();
+            Histogram lead = new Histogram(); // tenths of a millisecond
+            for (InputTrace.Stroke s : strokes) {
+                predictor.begin(s.points[0], s.points[1], s.times[0]);
+                for (int i = 1; i < s.count; i++) {
+                    predictor.add(s.points[2 * i], s.points[2 * i + 1], s.times[i]);
+                    int n = predictor.predict(out);
+                    if (n == 0) {
+                        continue;
+                    }
+                    // the furthest guess is the tip of the ink
+                    float px = out[3 * n - 3], py = out[3 * n - 2], ahead = out[3 * n - 1];
+                    float[] real = new float[2];
+                    if (!position(s, s.times[i] + ahead, real)) {
+                        break;
+                    }
+                    error.record(Math.round(100 * Math.hypot(px - real[0], py - real[1])));
+                    trail.record(Math.round(100 * Math.hypot(
+                            s.points[2 * i] - real[0], s.points[2 * i + 1] - real[1])));
+                    float best = Float.MAX_VALUE, bestT = 0;
+                    for (float t = 0; t <= 3 * ahead && position(s, s.times[i] + t, real);
+                            t += 0.5f) {
+                        float d = (float) Math.hypot(px - real[0], py - real[1]);
+                        if (d < best) {
+                            best = d;
+                            bestT = t;
+                        }
+                    }
+                    lead.record(Math.round(10 * bestT));
+                }
+            }
+            System.out.printf("%-32s %6.2f px error (p95 %.2f), %.2f px without, "
+                    + "%.1f ms effective lead%n", "predict " + horizon + " ms",
+                    error.getMean() / 100, error.getPercentile(0.95) / 100.0,
+                    trail.getMean() / 100, lead.getMean() / 10);
+        }
+    }
+
+    /**
+     * Where the pointer was at time t during the stroke, between the two
+     * points either side, returning false if t is past the end.
+     */
+    static boolean position(InputTrace.Stroke s, float t, float[] xy) {
+        for (int i = 1; i < s.count; i++) {
+            if (s.times[i] >= t) {
+                long span = s.times[i] - s.times[i - 1];
+                float f = span == 0 ? 1 : (t - s.times[i - 1]) / span;
+                xy[0] = s.points[2 * i - 2] + f * (s.points[2 * i] - s.points[2 * i - 2]);
+                xy[1] = s.points[2 * i - 1] + f * (s.points[2 * i + 1] - s.points[2 * i - 1]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A stroke of loops and curves as a hand might draw, reported every 8 ms
+     * or so at whole pixels, as mouse events are.
+     */
+    static InputTrace.Stroke syntheticStroke(Random random) {
+        double cx = 200 + random.nextInt(WIDTH - 400), cy = 200 + random.nextInt(HEIGHT - 400);
+        double r = 20 + random.nextInt(120), w1 = 0.002 + random.nextDouble() * 0.008;
+        double w2 = 0.0005 + random.nextDouble() * 0.002, drift = random.nextDouble() - 0.5;
+        float[] points = new float[2 * 200];
+        long[] times = new long[200];
+        int count = 0;
+        for (int t = 0; t < 1500; t += 7 + random.nextInt(3)) {
+            double x = cx + r * Math.sin(w1 * t) + 3 * r * Math.sin(w2 * t) + drift * t * 0.2;
+            double y = cy + r * Math.cos(w1 * t * 1.3) + r * Math.sin(w2 * t * 0.7);
+            points[2 * count] = Math.round(x);
+            points[2 * count + 1] = Math.round(y);
+            times[count++] = 1000 + t;
+        }
+        return new InputTrace.Stroke(points, times, count);
+    }
+
+    static void restoreProperty(String key, String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+    static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    static boolean selected(String[] args, String name) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (selected(args, "drag")) {
+            dragFrame();
+        }
+        if (selected(args, "commit")) {
+            strokeCommit();
+        }
+        if (selected(args, "undo")) {
+            undoReplay(10);
+            undoReplay(100);
+            undoReplay(1000);
+            layeredUndo(1000);
+        }
+        if (selected(args, "erase")) {
+            strokeEraser(1000);
+            strokeEraser(10000);
+        }
+        if (selected(args, "replay")) {
+            parallelReplay(100, 5, 20);
+            parallelReplay(1000, 2, 5);
+        }
+        if (selected(args, "render")) {
+            renderLatency();
+        }
+        if (selected(args, "journal")) {
+            journalRestore();
+        }
+        if (selected(args, "broadcast")) {
+            broadcastLatency();
+        }
+        if (selected(args, "heap")) {
+            historyHeap();
+            historyTiers();
+            canvasHeap();
+        }
+        if (selected(args, "predict")) {
+            inkPrediction();
+        }
+        if (selected(args, "png")) {
+            pngSave();
+            vectorSave();
+            deltaSave();
+            pngEncoders();
+        }
+        System.out.println("(sink " + (sink & 1) + ")");
+    }
+}
@@ -0,0 +1,250 @@
+package annotationtool.bench;
+
+import annotationtool.DrawingCanvas;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Checks that the canvas draws the same pixels however it gets there.
+ * Run with
+ * <pre>
+ * java -Djava.awt.headless=true annotationtool.bench.ReplayCheck
+ * </pre>
+ * Each check prints a line; the exit status is 1 if any of them failed.
+ */
+public class ReplayCheck {
+
+    static final int WIDTH = 400;
+    static final int HEIGHT = 300;
+
+    static int failures;
+
+    static void check(String name, boolean passed) {
+        System.out.printf("%-48s %s%n", name, passed ? "ok" : "FAILED");
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * A canvas built with the given keyframe memory ceiling, in bytes.
+     */
+    static DrawingCanvas newCanvas(long keyframeMemory) {
+        return newCanvas(keyframeMemory, DEFAULT, DEFAULT, DEFAULT);
+    }
+
+    static final int DEFAULT = -1;
+
+    /**
+     * A canvas whose keyframes are held under keyframeMemory bytes and
+     * taken every interval shapes or replayMillis of drawing, and whose
+     * replays run on parallelism threads, any but the first left at its
+     * default if DEFAULT.
+     */
+    static DrawingCanvas newCanvas(long keyframeMemory, int interval, long replayMillis,
+            int parallelism) {
+        String[] keys = {"annotationtool.keyframes.memory", "annotationtool.keyframes.interval",
+            "annotationtool.keyframes.replayMillis", "annotationtool.replay.parallelism"};
+        long[] values = {keyframeMemory, interval, replayMillis, parallelism};
+        String[] old = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            old[i] = System.getProperty(keys[i]);
+            if (values[i] != DEFAULT) {
+                System.setProperty(keys[i], String.valueOf(values[i]));
+            }
+        }
+        try {
+            return new DrawingCanvas(WIDTH, HEIGHT);
+        } finally {
+            for (int i = 0; i < keys.length; i++) {
+                RenderBenchmark.restoreProperty(keys[i], old[i]);
+            }
+        }
+    }
+
+    static void line(DrawingCanvas canvas, Color paint, float x0, float y0, float x1, float y1) {
+        line(canvas, paint, 9, x0, y0, x1, y1);
+    }
+
+    static void line(DrawingCanvas canvas, Color paint, float width, float x0, float y0,
+            float x1, float y1) {
+        canvas.setPaint(paint);
+        canvas.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        canvas.beginStroke(x0, y0);
+        canvas.extendStroke((x0 + x1) / 2, (y0 + y1) / 2);
+        canvas.extendStroke(x1, y1);
+        canvas.endStroke();
+    }
+
+    static void erase(DrawingCanvas canvas, float x0, float y0, float x1, float y1) {
+        canvas.beginErase(x0, y0);
+        canvas.extendErase(x1, y1);
+        canvas.endErase();
+    }
+
+    /**
+     * A stroke erased, the erase undone, the stroke erased again and the
+     * first erase redone over it, then undone: the second erase still
+     * hides the stroke.
+     */
+    static void eraseTwice(long keyframeMemory) {
+        DrawingCanvas canvas = newCanvas(keyframeMemory);
+        line(canvas, Color.RED, 50, 100, 350, 100);
+        erase(canvas, 200, 80, 200, 120);
+        canvas.undo();
+        erase(canvas, 200, 80, 200, 120);
+        line(canvas, Color.BLUE, 50, 200, 350, 200);
+        canvas.redo();
+        canvas.undo();
+        DrawingCanvas expected = newCanvas(0);
+        line(expected, Color.BLUE, 50, 200, 350, 200);
+        check("erase twice, keyframes " + (keyframeMemory == 0 ? "off" : "on"),
+                samePixels(canvas.getImage(), expected.getImage())
+                && canvas.strokesCrossing(200, 80, 200, 120) == 0);
+    }
+
+    /**
+     * A stroke across another, shown while it is drawn and once it is
+     * committed: the ink in progress must already replace the ink beneath
+     * it on its layer, as the committed stroke does.
+     */
+    static void liveInk(String name, Color under, Color paint) {
+        DrawingCanvas canvas = newCanvas(0);
+        line(canvas, under, 50, 150, 350, 150);
+        canvas.setPaint(paint);
+        canvas.setStroke(new BasicStroke(9, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        canvas.beginStroke(200, 50);
+        for (int y = 100; y <= 250; y += 50) {
+            canvas.extendStroke(200, y);
+        }
+        BufferedImage during = composed(canvas);
+        canvas.endStroke();
+        check(name, samePixels(during, composed(canvas)));
+    }
+
+    static BufferedImage composed(DrawingCanvas canvas) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        canvas.compose(g, new Rectangle(0, 0, WIDTH, HEIGHT));
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Lines one pixel wide and thinner, partly redrawn when a stroke across
+     * them is undone, against the same lines drawn whole.
+     */
+    static void thinLines() {
+        DrawingCanvas canvas = newCanvas(0);
+        DrawingCanvas expected = newCanvas(0);
+        float[] widths = {0, 0.5f, 1};
+        Random random = new Random(5);
+        for (int i = 0; i < 30; i++) {
+            float x0 = random.nextInt(WIDTH) + random.nextFloat();
+            float y0 = random.nextInt(HEIGHT) + random.nextFloat();
+            float x1 = random.nextInt(WIDTH) + random.nextFloat();
+            float y1 = random.nextInt(HEIGHT) + random.nextFloat();
+            line(canvas, Color.BLACK, widths[i % 3], x0, y0, x1, y1);
+            line(expected, Color.BLACK, widths[i % 3], x0, y0, x1, y1);
+        }
+        for (int i = 0; i < 10; i++) {
+            float x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            line(canvas, Color.RED, 30, x, y, x + 40, y + 25);
+            canvas.undo();
+        }
+        check("thin lines redrawn in part", samePixels(canvas.getImage(), expected.getImage()));
+    }
+
+    /**
+     * Random strokes, translucent and transparent ones among them, erases,
+     * undos, redos and clears, applied alike to a canvas taking a keyframe
+     * after every shape, one taking them every few shapes and one with none
+     * at all, which has to replay from the nearest clear every time. After
+     * each step all three must show the same pixels.
+     */
+    static void randomHistories(long seed, int steps) {
+        DrawingCanvas every = newCanvas(256L << 20, DEFAULT, 0, DEFAULT);
+        DrawingCanvas some = newCanvas(256L << 20, 3, 1000000, DEFAULT);
+        DrawingCanvas none = newCanvas(0);
+        check("random history " + seed, sameThroughout(seed, steps, none, every, some));
+    }
+
+    /**
+     * Full replays of random histories with the tiles rasterized on one
+     * thread and on four, which must come out the same pixel for pixel.
+     */
+    static void parallelReplay(long seed, int steps) {
+        DrawingCanvas serial = newCanvas(0, DEFAULT, DEFAULT, 1);
+        DrawingCanvas parallel = newCanvas(0, DEFAULT, DEFAULT, 4);
+        check("parallel replay " + seed, sameThroughout(seed, steps, serial, parallel));
+    }
+
+    /**
+     * Applies the same random history to every canvas, returning whether
+     * after each step the others all show the same pixels as the first.
+     */
+    static boolean sameThroughout(long seed, int steps, DrawingCanvas expected,
+            DrawingCanvas... others) {
+        DrawingCanvas[] canvases = new DrawingCanvas[others.length + 1];
+        canvases[0] = expected;
+        System.arraycopy(others, 0, canvases, 1, others.length);
+        Random random = new Random(seed);
+        int failedAt = -1;
+        for (int step = 0; step < steps && failedAt < 0; step++) {
+            int op = random.nextInt(20);
+            float x0 = random.nextInt(WIDTH), y0 = random.nextInt(HEIGHT);
+            float x1 = random.nextInt(WIDTH), y1 = random.nextInt(HEIGHT);
+            int alpha = new int[]{255, 255, 128, 0}[random.nextInt(4)];
+            Color paint = new Color(random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), alpha);
+            Color clear = random.nextBoolean() ? Color.WHITE : DrawingCanvas.CLEAR_PAINT;
+            for (DrawingCanvas canvas : canvases) {
+                if (op < 3) {
+                    canvas.undo();
+                } else if (op < 5) {
+                    canvas.redo();
+                } else if (op < 8) {
+                    erase(canvas, x0, y0, x1, y1);
+                } else if (op == 8) {
+                    canvas.clear(clear);
+                } else {
+                    line(canvas, paint, x0, y0, x1, y1);
+                }
+            }
+            BufferedImage image = expected.getImage();
+            for (DrawingCanvas other : others) {
+                if (!samePixels(other.getImage(), image)) {
+                    failedAt = step;
+                }
+            }
+        }
+        if (failedAt >= 0) {
+            System.out.println("seed " + seed + " differs at step " + failedAt);
+        }
+        return failedAt < 0;
+    }
+
+    static boolean samePixels(BufferedImage a, BufferedImage b) {
+        return RenderBenchmark.samePixels(a, b);
+    }
+
+    public static void main(String[] args) {
+        eraseTwice(0);
+        eraseTwice(64L << 20);
+        thinLines();
+        liveInk("live ink, transparent", Color.RED, DrawingCanvas.CLEAR_PAINT);
+        liveInk("live ink, translucent", new Color(255, 0, 0, 128), new Color(0, 0, 255, 128));
+        liveInk("live ink, opaque", new Color(255, 0, 0, 128), Color.BLUE);
+        for (long seed = 1; seed <= 10; seed++) {
+            randomHistories(seed, 300);
+        }
+        for (long seed = 1; seed <= 3; seed++) {
+            parallelReplay(seed, 200);
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}